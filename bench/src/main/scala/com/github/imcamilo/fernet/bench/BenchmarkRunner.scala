@@ -0,0 +1,39 @@
+package com.github.imcamilo.fernet.bench
+
+import org.openjdk.jmh.profile.GCProfiler
+import org.openjdk.jmh.results.format.ResultFormatType
+import org.openjdk.jmh.runner.Runner
+import org.openjdk.jmh.runner.options.{CommandLineOptions, OptionsBuilder}
+
+import scala.collection.immutable.SortedSet
+
+/** Runs every benchmark in this module once per thread count, from a single thread up to the number of available
+  *  cores (powers of two, plus the core count itself), with the GC profiler attached. Payload sizes are swept by the
+  *  <em>payloadSize</em> parameter of [[TokenState]].
+  *
+  *  Any argument accepted by the JMH command line (e.g. a benchmark regex or <em>-p payloadSize=16</em>) is passed
+  *  through, so a narrower sweep can be run with
+  *  <em>sbt "bench/Jmh/runMain com.github.imcamilo.fernet.bench.BenchmarkRunner .*generate"</em>.
+  */
+object BenchmarkRunner {
+
+  def threadCounts(cores: Int): SortedSet[Int] =
+    SortedSet(cores) ++ Iterator.iterate(1)(_ * 2).takeWhile(_ < cores)
+
+  def main(args: Array[String]): Unit = {
+    val commandLine = new CommandLineOptions(args: _*)
+    val cores = Runtime.getRuntime.availableProcessors
+    threadCounts(cores).foreach { threads =>
+      val builder = new OptionsBuilder().parent(commandLine)
+      if (commandLine.getIncludes.isEmpty)
+        builder.include(getClass.getPackage.getName + ".*")
+      builder
+        .threads(threads)
+        .addProfiler(classOf[GCProfiler])
+        .resultFormat(ResultFormatType.JSON)
+        .result(s"jmh-result-${threads}t.json")
+      new Runner(builder.build).run()
+    }
+  }
+
+}
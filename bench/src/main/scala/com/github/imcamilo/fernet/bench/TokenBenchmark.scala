@@ -0,0 +1,68 @@
+package com.github.imcamilo.fernet.bench
+
+import com.github.imcamilo.fernet.{FailureReason, Token, TokenView}
+import com.github.imcamilo.validators.{StandardValidator, Validator}
+import org.openjdk.jmh.annotations._
+
+import java.util.concurrent.TimeUnit
+
+/** Benchmarks for the individual steps of issuing and verifying a Fernet token. Each benchmark returns its result so
+  *  that JMH consumes it and the JIT cannot drop the work.
+  */
+@BenchmarkMode(Array(Mode.Throughput))
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+class TokenBenchmark {
+
+  private val validator: Validator[Array[Byte]] = new Validator[Array[Byte]] {
+    override def getTimeToLive =
+      StandardValidator.validator.getTimeToLive
+    val getTransformer: Array[Byte] => Array[Byte] = bytes => bytes
+  }
+
+  @Benchmark
+  def generate(state: TokenState): Token =
+    Token.generate(state.random, state.key, state.payload)
+
+  @Benchmark
+  def generateWithSharedSource(state: TokenState): Token =
+    Token.generate(state.key, state.payload)
+
+  @Benchmark
+  def generateEncoded(state: TokenState): Array[Byte] =
+    Token.generateEncoded(state.random, state.key, state.payload)
+
+  @Benchmark
+  def serialise(state: TokenState): String =
+    Token.serialise(state.token)
+
+  @Benchmark
+  def fromString(state: TokenState): Option[Token] =
+    Token.fromString(state.serialised)
+
+  @Benchmark
+  def isValidSignature(state: TokenState): Boolean =
+    state.token.isValidSignature(state.key)
+
+  @Benchmark
+  def validateAndDecrypt(state: TokenState): Option[Array[Byte]] =
+    state.token.validateAndDecrypt(state.key, validator)
+
+  @Benchmark
+  def viewFromString(state: TokenState): Option[TokenView] =
+    TokenView.fromString(state.serialised)
+
+  @Benchmark
+  def viewValidateAndDecrypt(state: TokenState): Option[Array[Byte]] =
+    state.view.validateAndDecrypt(state.key, validator)
+
+  @Benchmark
+  def oneShotValidateAndDecrypt(
+      state: TokenState
+  ): Either[FailureReason, Array[Byte]] =
+    Token.validateAndDecrypt(state.serialised, state.key, validator)
+
+}
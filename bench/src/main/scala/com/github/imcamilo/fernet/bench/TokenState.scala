@@ -0,0 +1,39 @@
+package com.github.imcamilo.fernet.bench
+
+import com.github.imcamilo.fernet.{Key, Token, TokenView}
+import org.openjdk.jmh.annotations.{Level, Param, Scope, Setup, State}
+
+import java.security.SecureRandom
+
+/** Shared fixture for the token benchmarks: a key, a random payload of <em>payloadSize</em> bytes and a token built
+  *  from it, in its object, view and serialised forms.
+  */
+@State(Scope.Benchmark)
+class TokenState {
+
+  @Param(Array("16", "256", "4096", "65536", "1048576"))
+  var payloadSize: Int = _
+
+  var random: SecureRandom = _
+  var key: Key = _
+  var payload: Array[Byte] = _
+  var token: Token = _
+  var serialised: String = _
+  var view: TokenView = _
+
+  @Setup(Level.Trial)
+  def setUp(): Unit = {
+    random = new SecureRandom
+    key = Key(TokenState.EncodedKey).get
+    payload = new Array[Byte](payloadSize)
+    random.nextBytes(payload)
+    token = Token.generate(random, key, payload)
+    serialised = Token.serialise(token)
+    view = TokenView.fromString(serialised).get
+  }
+
+}
+
+object TokenState {
+  val EncodedKey = "wz5hami-yvr3zHyzVEiOYFvN9kTzXRW3dP7NcUr9Nvs="
+}
@@ -0,0 +1,36 @@
+package com.github.imcamilo.fernet.bench
+
+import com.github.imcamilo.validators.{StandardValidator, Validator}
+import org.openjdk.jmh.annotations._
+
+import java.util.concurrent.TimeUnit
+import scala.util.Try
+
+/** Benchmarks for the validator entry points, with the default string transformer and with a pass-through one so
+  *  that the cost of building the <em>String</em> can be told apart from the cost of verification.
+  */
+@BenchmarkMode(Array(Mode.Throughput))
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+class ValidatorBenchmark {
+
+  private val stringValidator: Validator[String] = StandardValidator.validator
+
+  private val bytesValidator: Validator[Array[Byte]] =
+    new Validator[Array[Byte]] {
+      override def getTimeToLive = stringValidator.getTimeToLive
+      val getTransformer: Array[Byte] => Array[Byte] = bytes => bytes
+    }
+
+  @Benchmark
+  def validateAndDecryptString(state: TokenState): Try[String] =
+    stringValidator.validateAndDecrypt(state.key, state.token)
+
+  @Benchmark
+  def validateAndDecryptBytes(state: TokenState): Try[Array[Byte]] =
+    bytesValidator.validateAndDecrypt(state.key, state.token)
+
+}
@@ -0,0 +1,270 @@
+package com.github.imcamilo.fernet
+
+import java.nio.ByteBuffer
+
+/** Base 64 URL encoding (RFC 4648 §5, with padding) into slices of arrays and buffers, producing the same output as
+  *  [[Constants.encoder]] without allocating the destination, and decoding from ASCII bytes or characters, accepting
+  *  the same input as [[Constants.decoder]], into a destination the caller can reuse.
+  */
+object Base64Url {
+
+  private val alphabet: Array[Byte] =
+    "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_"
+      .getBytes(java.nio.charset.StandardCharsets.US_ASCII)
+
+  private val padding: Byte = '='
+
+  /** The value of each ASCII character in the alphabet, -1 for the others. */
+  private val sextets: Array[Byte] = {
+    val table = Array.fill[Byte](128)(-1)
+    alphabet.indices.foreach(i => table(alphabet(i)) = i.toByte)
+    table
+  }
+
+  /** @return the length of the padded encoding of <em>length</em> bytes */
+  def encodedLength(length: Int): Int = (length + 2) / 3 * 4
+
+  /** Encode a slice of an array into another. The groups are encoded from the last one, so the slices may overlap
+    *  as long as <em>dstOffset</em> is not before <em>srcOffset</em>: a token can be encoded in place, over its own
+    *  bytes, in an array sized for its encoding.
+    *  @param src
+    *    the array holding the bytes to encode at <em>srcOffset</em>
+    *  @param dst
+    *    the array receiving the ASCII encoding at <em>dstOffset</em>. It must have room for
+    *    <em>encodedLength(length)</em> bytes.
+    *  @return
+    *    the number of bytes written to <em>dst</em>
+    */
+  def encode(
+      src: Array[Byte],
+      srcOffset: Int,
+      length: Int,
+      dst: Array[Byte],
+      dstOffset: Int
+  ): Int = {
+    if (
+      (src eq dst) && dstOffset < srcOffset && dstOffset + encodedLength(length) > srcOffset
+    )
+      throw new IllegalArgumentException(
+        "Encoding would overwrite bytes not yet encoded"
+      )
+    var s = srcOffset + length / 3 * 3
+    var d = dstOffset + length / 3 * 4
+    val remaining = srcOffset + length - s
+    if (remaining > 0) {
+      val bits = (src(s) & 0xff) << 16 |
+        (if (remaining == 2) (src(s + 1) & 0xff) << 8 else 0)
+      dst(d) = alphabet(bits >>> 18)
+      dst(d + 1) = alphabet((bits >>> 12) & 0x3f)
+      dst(d + 2) = if (remaining == 2) alphabet((bits >>> 6) & 0x3f) else padding
+      dst(d + 3) = padding
+    }
+    // each group is read before it is written over, and it only writes over itself and the groups after it
+    while (s > srcOffset) {
+      s -= 3
+      d -= 4
+      val bits = (src(s) & 0xff) << 16 | (src(s + 1) & 0xff) << 8 | (src(s + 2) & 0xff)
+      dst(d) = alphabet(bits >>> 18)
+      dst(d + 1) = alphabet((bits >>> 12) & 0x3f)
+      dst(d + 2) = alphabet((bits >>> 6) & 0x3f)
+      dst(d + 3) = alphabet(bits & 0x3f)
+    }
+    encodedLength(length)
+  }
+
+  /** Encode a slice of an array into a (possibly direct) buffer.
+    *  @param dst
+    *    the buffer receiving the ASCII encoding at its position, which is left untouched. It must have
+    *    <em>encodedLength(length)</em> bytes remaining.
+    *  @return
+    *    the number of bytes written to <em>dst</em>
+    */
+  def encode(
+      src: Array[Byte],
+      srcOffset: Int,
+      length: Int,
+      dst: ByteBuffer
+  ): Int = {
+    val fullGroupsEnd = srcOffset + length / 3 * 3
+    var s = srcOffset
+    var d = dst.position()
+    while (s < fullGroupsEnd) {
+      val bits = (src(s) & 0xff) << 16 | (src(s + 1) & 0xff) << 8 | (src(s + 2) & 0xff)
+      dst.put(d, alphabet(bits >>> 18))
+      dst.put(d + 1, alphabet((bits >>> 12) & 0x3f))
+      dst.put(d + 2, alphabet((bits >>> 6) & 0x3f))
+      dst.put(d + 3, alphabet(bits & 0x3f))
+      s += 3
+      d += 4
+    }
+    val remaining = srcOffset + length - s
+    if (remaining > 0) {
+      val bits = (src(s) & 0xff) << 16 |
+        (if (remaining == 2) (src(s + 1) & 0xff) << 8 else 0)
+      dst.put(d, alphabet(bits >>> 18))
+      dst.put(d + 1, alphabet((bits >>> 12) & 0x3f))
+      dst.put(d + 2, if (remaining == 2) alphabet((bits >>> 6) & 0x3f) else padding)
+      dst.put(d + 3, padding)
+    }
+    encodedLength(length)
+  }
+
+  /** @return
+    *    the length of the bytes encoded in <em>length</em> characters ending with <em>secondLast</em> and <em>last</em>,
+    *    padded or not, or -1 if no encoding has that length
+    */
+  private def decodedLength(length: Int, secondLast: Int, last: Int): Int =
+    length % 4 match {
+      case 0 if length == 0 => 0
+      case 0 =>
+        val padded =
+          if (last != padding) 0 else if (secondLast == padding) 2 else 1
+        length / 4 * 3 - padded
+      case 1 => -1
+      case r => length / 4 * 3 + r - 1
+    }
+
+  /** @return the length of the bytes encoded in a slice of ASCII bytes, or -1 if no encoding has that length */
+  def decodedLength(src: Array[Byte], srcOffset: Int, length: Int): Int =
+    decodedLength(
+      length,
+      if (length > 1) src(srcOffset + length - 2) else 0,
+      if (length > 0) src(srcOffset + length - 1) else 0
+    )
+
+  /** @return the length of the bytes encoded in ASCII from the position to the limit of a buffer, or -1 */
+  def decodedLength(src: ByteBuffer): Int = {
+    val length = src.remaining
+    decodedLength(
+      length,
+      if (length > 1) src.get(src.limit() - 2) else 0,
+      if (length > 0) src.get(src.limit() - 1) else 0
+    )
+  }
+
+  /** @return the length of the bytes encoded in a sequence of characters, e.g. a CharBuffer, or -1 */
+  def decodedLength(src: CharSequence): Int = {
+    val length = src.length
+    decodedLength(
+      length,
+      if (length > 1) src.charAt(length - 2) else 0,
+      if (length > 0) src.charAt(length - 1) else 0
+    )
+  }
+
+  /** Decode a slice of ASCII bytes into an array. The length is checked before anything is decoded.
+    *  @param dst
+    *    the array receiving the decoded bytes at <em>dstOffset</em>. It must have room for
+    *    <em>decodedLength(src, srcOffset, length)</em> bytes.
+    *  @return
+    *    the number of bytes written to <em>dst</em>, or -1 if the slice is not a Base 64 URL encoding, in which case
+    *    part of it may have been written
+    */
+  def decode(
+      src: Array[Byte],
+      srcOffset: Int,
+      length: Int,
+      dst: Array[Byte],
+      dstOffset: Int
+  ): Int = {
+    val decoded = decodedLength(src, srcOffset, length)
+    if (decoded < 0) return -1
+    checkRoom(dst, dstOffset, decoded)
+    val end = srcOffset + quantaLength(decoded)
+    var s = srcOffset
+    var d = dstOffset
+    while (s < end) {
+      val bits = sextet(src(s)) << 18 | sextet(src(s + 1)) << 12 |
+        sextet(src(s + 2)) << 6 | sextet(src(s + 3))
+      if (bits < 0) return -1
+      d = put(bits, dst, d, 3)
+      s += 4
+    }
+    val tail = decoded - (d - dstOffset)
+    if (tail > 0) {
+      val bits = sextet(src(s)) << 18 | sextet(src(s + 1)) << 12 |
+        (if (tail == 2) sextet(src(s + 2)) << 6 else 0)
+      if (bits < 0) return -1
+      put(bits, dst, d, tail)
+    }
+    decoded
+  }
+
+  /** Decode the ASCII bytes from the position to the limit of a (possibly direct) buffer into an array, see the
+    *  array overload. The position of <em>src</em> is left untouched.
+    */
+  def decode(src: ByteBuffer, dst: Array[Byte], dstOffset: Int): Int = {
+    val decoded = decodedLength(src)
+    if (decoded < 0) return -1
+    checkRoom(dst, dstOffset, decoded)
+    val end = src.position() + quantaLength(decoded)
+    var s = src.position()
+    var d = dstOffset
+    while (s < end) {
+      val bits = sextet(src.get(s)) << 18 | sextet(src.get(s + 1)) << 12 |
+        sextet(src.get(s + 2)) << 6 | sextet(src.get(s + 3))
+      if (bits < 0) return -1
+      d = put(bits, dst, d, 3)
+      s += 4
+    }
+    val tail = decoded - (d - dstOffset)
+    if (tail > 0) {
+      val bits = sextet(src.get(s)) << 18 | sextet(src.get(s + 1)) << 12 |
+        (if (tail == 2) sextet(src.get(s + 2)) << 6 else 0)
+      if (bits < 0) return -1
+      put(bits, dst, d, tail)
+    }
+    decoded
+  }
+
+  /** Decode a sequence of characters, e.g. a String or a CharBuffer, into an array, see the array overload. */
+  def decode(src: CharSequence, dst: Array[Byte], dstOffset: Int): Int = {
+    val decoded = decodedLength(src)
+    if (decoded < 0) return -1
+    checkRoom(dst, dstOffset, decoded)
+    val end = quantaLength(decoded)
+    var s = 0
+    var d = dstOffset
+    while (s < end) {
+      val bits = sextet(src.charAt(s)) << 18 | sextet(src.charAt(s + 1)) << 12 |
+        sextet(src.charAt(s + 2)) << 6 | sextet(src.charAt(s + 3))
+      if (bits < 0) return -1
+      d = put(bits, dst, d, 3)
+      s += 4
+    }
+    val tail = decoded - (d - dstOffset)
+    if (tail > 0) {
+      val bits = sextet(src.charAt(s)) << 18 | sextet(src.charAt(s + 1)) << 12 |
+        (if (tail == 2) sextet(src.charAt(s + 2)) << 6 else 0)
+      if (bits < 0) return -1
+      put(bits, dst, d, tail)
+    }
+    decoded
+  }
+
+  /** @return the number of characters encoding the complete 3 byte groups of <em>decoded</em> bytes */
+  private def quantaLength(decoded: Int): Int = decoded / 3 * 4
+
+  /** @return the 6 bits a character stands for, or -1, which makes the whole group negative however it is shifted */
+  private def sextet(c: Int): Int =
+    if (c >= 0 && c < 128) sextets(c) else -1
+
+  private def sextet(c: Byte): Int = sextet(c.toInt)
+
+  private def sextet(c: Char): Int = sextet(c.toInt)
+
+  /** Write the first <em>count</em> bytes of a 24 bit group. */
+  private def put(bits: Int, dst: Array[Byte], offset: Int, count: Int): Int = {
+    dst(offset) = (bits >>> 16).toByte
+    if (count > 1) dst(offset + 1) = (bits >>> 8).toByte
+    if (count > 2) dst(offset + 2) = bits.toByte
+    offset + count
+  }
+
+  private def checkRoom(dst: Array[Byte], dstOffset: Int, decoded: Int): Unit =
+    if (dstOffset < 0 || dst.length - dstOffset < decoded)
+      throw new IllegalArgumentException(
+        "Destination too small for " + decoded + " decoded bytes"
+      )
+
+}
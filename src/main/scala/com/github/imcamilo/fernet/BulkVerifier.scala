@@ -0,0 +1,158 @@
+package com.github.imcamilo.fernet
+
+import com.github.imcamilo.validators.Validator
+
+import java.util.concurrent.{ForkJoinPool, ForkJoinTask, RecursiveAction}
+
+/** Verification of large indexed collections of token strings, e.g. to re-validate stored tokens offline. The work is
+  *  split in halves on a ForkJoin pool, so idle workers steal the halves still pending, down to ranges of
+  *  <em>threshold</em> tokens that are verified sequentially. Batches below the threshold never leave the calling
+  *  thread.
+  */
+object BulkVerifier {
+
+  /** The number of tokens below which a range is verified sequentially. */
+  val DefaultThreshold: Int = 512
+
+  /** Verify and decrypt every token against a key on the common pool.
+    *  @param key
+    *    the secret key against which to validate the tokens
+    *  @param validator
+    *    an object that encapsulates the validation parameters (e.g. TTL)
+    *  @param tokens
+    *    the Base 64 URL encodings of the tokens
+    *  @return
+    *    the outcome and payload of each token, in the order of <em>tokens</em>
+    */
+  def validateAndDecrypt[A](
+      key: Key,
+      validator: Validator[A],
+      tokens: IndexedSeq[String]
+  ): BulkResult[A] =
+    validateAndDecrypt(
+      key,
+      validator,
+      tokens,
+      ForkJoinPool.commonPool,
+      DefaultThreshold
+    )
+
+  /** Verify and decrypt every token against a key ring on the common pool, see [[KeyRing.validateAndDecrypt]]. */
+  def validateAndDecrypt[A](
+      keys: KeyRing,
+      validator: Validator[A],
+      tokens: IndexedSeq[String]
+  ): BulkResult[A] =
+    validateAndDecrypt(
+      keys,
+      validator,
+      tokens,
+      ForkJoinPool.commonPool,
+      DefaultThreshold
+    )
+
+  /** Verify and decrypt every token against a key on a given pool.
+    *  @param pool
+    *    the pool running the verification
+    *  @param threshold
+    *    the number of tokens below which a range is verified sequentially
+    */
+  def validateAndDecrypt[A](
+      key: Key,
+      validator: Validator[A],
+      tokens: IndexedSeq[String],
+      pool: ForkJoinPool,
+      threshold: Int
+  ): BulkResult[A] =
+    run(tokens, pool, threshold)(Token.validateAndDecrypt(_, key, validator))
+
+  /** Verify and decrypt every token against a key ring on a given pool.
+    *  @param pool
+    *    the pool running the verification
+    *  @param threshold
+    *    the number of tokens below which a range is verified sequentially
+    */
+  def validateAndDecrypt[A](
+      keys: KeyRing,
+      validator: Validator[A],
+      tokens: IndexedSeq[String],
+      pool: ForkJoinPool,
+      threshold: Int
+  ): BulkResult[A] =
+    run(tokens, pool, threshold) { token =>
+      keys.validateAndDecrypt(token, validator).map(_.payload)
+    }
+
+  private def run[A](
+      tokens: IndexedSeq[String],
+      pool: ForkJoinPool,
+      threshold: Int
+  )(verify: String => Either[FailureReason, A]): BulkResult[A] = {
+    require(threshold > 0, "threshold must be positive")
+    val outcomes = new Array[Byte](tokens.length)
+    val payloads = new Array[Any](tokens.length)
+
+    def verifyRange(from: Int, until: Int): Unit = {
+      var i = from
+      while (i < until) {
+        verify(tokens(i)) match {
+          case Right(payload) => payloads(i) = payload
+          case Left(reason)   => outcomes(i) = reason.code.toByte
+        }
+        i += 1
+      }
+    }
+
+    final class VerifyTask(from: Int, until: Int) extends RecursiveAction {
+      override def compute(): Unit =
+        if (until - from <= threshold) verifyRange(from, until)
+        else {
+          val middle = (from + until) >>> 1
+          ForkJoinTask.invokeAll(
+            new VerifyTask(from, middle),
+            new VerifyTask(middle, until)
+          )
+        }
+    }
+
+    if (tokens.length <= threshold) verifyRange(0, tokens.length)
+    else pool.invoke(new VerifyTask(0, tokens.length))
+    new BulkResult[A](outcomes, payloads)
+  }
+
+}
+
+/** The outcome of verifying each token of a bulk, packed into two arrays indexed like the tokens: one byte per token
+  *  holding 0 for a valid token or the [[FailureReason.code]] of its rejection, and the payloads of the valid tokens.
+  */
+final class BulkResult[A] private[fernet] (
+    outcomes: Array[Byte],
+    payloads: Array[Any]
+) {
+
+  def size: Int = outcomes.length
+
+  def isValid(index: Int): Boolean = outcomes(index) == 0
+
+  /** @return 0 if the token at <em>index</em> is valid, the code of the reason it was rejected otherwise */
+  def outcome(index: Int): Int = outcomes(index)
+
+  /** @return the reason the token at <em>index</em> was rejected, or null if it is valid */
+  def reason(index: Int): FailureReason =
+    if (isValid(index)) null else FailureReason.fromCode(outcomes(index))
+
+  /** @return the payload of the token at <em>index</em>, or null if it was rejected */
+  def payload(index: Int): A = payloads(index).asInstanceOf[A]
+
+  /** @return the number of valid tokens */
+  def validCount: Int = {
+    var count = 0
+    var i = 0
+    while (i < outcomes.length) {
+      if (outcomes(i) == 0) count += 1
+      i += 1
+    }
+    count
+  }
+
+}
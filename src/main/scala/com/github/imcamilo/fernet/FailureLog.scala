@@ -0,0 +1,131 @@
+package com.github.imcamilo.fernet
+
+import org.slf4j.LoggerFactory
+
+import java.util.concurrent.ThreadLocalRandom
+import java.util.concurrent.atomic.{AtomicLong, LongAdder}
+
+/** Aggregated logging of rejected tokens and keys. Instead of one error line per failure, which turns a flood of
+  *  invalid tokens into a flood of log lines, failures are counted per reason and a summary of the counts is logged
+  *  at most once every [[getSummaryIntervalMillis]]. Optionally one failure in [[getSampleRate]] is also logged on
+  *  its own line. Recording a failure when logging is disabled costs one volatile read.
+  */
+object FailureLog {
+
+  private val logger = LoggerFactory.getLogger(getClass)
+
+  /** The default minimum interval between two summaries. */
+  val DefaultSummaryIntervalMillis = 10000L
+
+  @volatile private var enabled = true
+  @volatile private var summaryIntervalMillis = DefaultSummaryIntervalMillis
+  @volatile private var sampleRate = 0
+
+  private val counts =
+    Array.fill(FailureReason.values.length)(new LongAdder)
+  private val keyFailures = new LongAdder
+  private val nextSummary = new AtomicLong
+
+  def isEnabled: Boolean = enabled
+
+  /** Switch failure logging on or off. When off, failures are neither counted nor logged. */
+  def setEnabled(enabled: Boolean): Unit = this.enabled = enabled
+
+  def getSummaryIntervalMillis: Long = summaryIntervalMillis
+
+  def setSummaryIntervalMillis(millis: Long): Unit = {
+    if (millis < 0)
+      throw new IllegalArgumentException("interval must not be negative")
+    summaryIntervalMillis = millis
+  }
+
+  def getSampleRate: Int = sampleRate
+
+  /** Log one failure in <em>rate</em> on its own line, on top of the summaries. 0 logs no individual failure. */
+  def setSampleRate(rate: Int): Unit = {
+    if (rate < 0)
+      throw new IllegalArgumentException("sample rate must not be negative")
+    sampleRate = rate
+  }
+
+  /** Record a rejected token.
+    *  @param context
+    *    what was being done, for the sampled detail line
+    *  @param reason
+    *    why the token was rejected
+    */
+  def record(context: String, reason: FailureReason): Unit =
+    if (enabled) {
+      counts(reason.code).increment()
+      if (sampled()) logger.error("{} - {}", context, reason)
+      summariseIfDue()
+    }
+
+  /** Record a key that could not be read.
+    *  @param context
+    *    what was being done, for the sampled detail line
+    *  @param cause
+    *    why the key was rejected
+    */
+  def recordKeyFailure(context: String, cause: Throwable): Unit =
+    if (enabled) {
+      keyFailures.increment()
+      if (sampled())
+        logger.error("{} - {}", context, cause.getMessage)
+      summariseIfDue()
+    }
+
+  /** @return the number of tokens rejected for <em>reason</em> since the last summary */
+  def pending(reason: FailureReason): Long = counts(reason.code).sum
+
+  /** @return the number of keys rejected since the last summary */
+  def pendingKeyFailures: Long = keyFailures.sum
+
+  /** Log a summary of the failures recorded since the last one, if any, and reset the counts. */
+  def flush(): Unit = {
+    nextSummary.set(System.currentTimeMillis + summaryIntervalMillis)
+    summarise()
+  }
+
+  private def sampled(): Boolean = {
+    val rate = sampleRate
+    rate > 0 && ThreadLocalRandom.current.nextInt(rate) == 0
+  }
+
+  private def summariseIfDue(): Unit = {
+    val now = System.currentTimeMillis
+    val due = nextSummary.get
+    // only the thread winning the race logs the summary for this interval
+    if (
+      now >= due && nextSummary.compareAndSet(due, now + summaryIntervalMillis)
+    ) summarise()
+  }
+
+  private def summarise(): Unit = {
+    val summary = new StringBuilder
+    var total = 0L
+    var code = 1
+    while (code < counts.length) {
+      val count = counts(code).sumThenReset
+      if (count > 0) {
+        summary
+          .append(", ")
+          .append(FailureReason.fromCode(code))
+          .append(": ")
+          .append(count)
+        total += count
+      }
+      code += 1
+    }
+    val keys = keyFailures.sumThenReset
+    if (keys > 0) summary.append(", invalid key: ").append(keys)
+    if (total > 0 || keys > 0)
+      logger.error(
+        "rejected {} tokens and {} keys{}",
+        Long.box(total),
+        Long.box(keys),
+        summary
+      )
+  }
+
+}
@@ -0,0 +1,77 @@
+package com.github.imcamilo.fernet
+
+import com.github.imcamilo.exceptions.{OutputValidationException, WHTokenException}
+
+/** Why a token was rejected. Reasons are singletons, so reporting one allocates nothing, and neither rejecting nor
+  *  reporting a token captures a stack trace. The exceptions of the Try based APIs are built from a reason only when
+  *  such an API is called, see [[toException]].
+  *
+  *  @param code
+  *    a small, stable number identifying the reason, e.g. to pack outcomes into a byte array
+  *  @param message
+  *    a human-readable description of the reason
+  */
+sealed abstract class FailureReason(val code: Int, val message: String) {
+  override def toString: String = message
+
+  /** @return the exception the Try based APIs fail with for this reason */
+  def toException: WHTokenException = this match {
+    case FailureReason.InvalidPayload => new OutputValidationException(message)
+    case _                            => new WHTokenException(message)
+  }
+}
+
+object FailureReason {
+
+  /** The token is not valid Base 64 URL, or its length does not match the Fernet layout. */
+  case object Malformed extends FailureReason(1, "Malformed token")
+
+  /** The token was issued for a version of the specification other than 0x80. */
+  case object BadVersion extends FailureReason(2, "Invalid version")
+
+  /** The token is older than the time to live of the validator. */
+  case object Expired extends FailureReason(3, "Token is expired")
+
+  /** The token was issued further in the future than the maximum clock skew of the validator. */
+  case object FutureTimestamp
+      extends FailureReason(4, "Token timestamp is in the future (clock skew).")
+
+  /** The token was not signed with the key, or it has been tampered with. */
+  case object SignatureMismatch
+      extends FailureReason(5, "Signature does not match.")
+
+  /** The signature matched but the decrypted payload is not correctly padded. */
+  case object BadPadding extends FailureReason(6, "Invalid padding in token")
+
+  /** The payload could not be transformed, or was rejected by the object validator. */
+  case object InvalidPayload
+      extends FailureReason(7, "Invalid Fernet token payload.")
+
+  /** The token is genuine but has been revoked before the end of its time to live. */
+  case object Revoked extends FailureReason(8, "Token has been revoked")
+
+  /** The token is single-use and has been presented before. */
+  case object Replayed extends FailureReason(9, "Token has already been used")
+
+  /** The replay store has no room left to remember that the token is used, so it cannot be accepted. */
+  case object ReplayStoreFull extends FailureReason(10, "Replay store is full")
+
+  /** Every reason, indexed by code. Index 0 is unused, it stands for success where outcomes are packed. */
+  val values: IndexedSeq[FailureReason] = Vector(
+    null,
+    Malformed,
+    BadVersion,
+    Expired,
+    FutureTimestamp,
+    SignatureMismatch,
+    BadPadding,
+    InvalidPayload,
+    Revoked,
+    Replayed,
+    ReplayStoreFull
+  )
+
+  /** @return the reason with the given code */
+  def fromCode(code: Int): FailureReason = values(code)
+
+}
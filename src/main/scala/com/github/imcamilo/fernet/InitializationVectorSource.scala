@@ -0,0 +1,114 @@
+package com.github.imcamilo.fernet
+
+import java.security.{NoSuchAlgorithmException, SecureRandom}
+import java.util.concurrent.CompletableFuture
+
+/** A source of initialization vectors for token generation that avoids seeding a SecureRandom per token and
+  *  serialising every thread on a single one.
+  *
+  *  <p> Random bytes come from <em>stripes</em> independent DRBG instances, each guarded by its own lock and picked
+  *  by thread id, so threads rarely contend. Each stripe prefetches <em>bufferSize</em> bytes at a time, so most
+  *  requests are a copy out of that buffer, and every prefetched byte is handed out once only. The instances are
+  *  created and seeded once, in the background, when the source is created; a thread that needs a stripe before it
+  *  is ready seeds it itself. </p>
+  *
+  *  @param stripes
+  *    the number of independent generators, rounded up to a power of two
+  *  @param bufferSize
+  *    the number of random bytes each generator prefetches at a time
+  */
+final class InitializationVectorSource(stripes: Int, bufferSize: Int) {
+
+  import InitializationVectorSource._
+
+  require(stripes > 0, "stripes must be positive")
+  require(bufferSize > 0, "bufferSize must be positive")
+
+  private val stripeArray: Array[Stripe] = {
+    val size = if (stripes == 1) 1 else Integer.highestOneBit(stripes - 1) << 1
+    Array.fill(size)(new Stripe(bufferSize))
+  }
+
+  private val mask = stripeArray.length - 1
+
+  {
+    val seeding = new Thread(() => stripeArray.foreach(_.seed()))
+    seeding.setName("fernet4s-iv-seeding")
+    seeding.setDaemon(true)
+    seeding.start()
+  }
+
+  /** @return a new array of 128 random bits */
+  def next(): Array[Byte] = {
+    val initializationVector = new Array[Byte](Constants.initializationVectorBytes)
+    nextBytes(initializationVector, 0, initializationVector.length)
+    initializationVector
+  }
+
+  /** Fill a slice of an array with random bytes.
+    *  @param bytes
+    *    the array receiving <em>length</em> random bytes at <em>offset</em>
+    */
+  def nextBytes(bytes: Array[Byte], offset: Int, length: Int): Unit =
+    stripeArray((Thread.currentThread.getId & mask).toInt)
+      .nextBytes(bytes, offset, length)
+
+}
+
+object InitializationVectorSource {
+
+  /** The source shared by the token generation functions that do not take a SecureRandom. */
+  lazy val shared: InitializationVectorSource =
+    new InitializationVectorSource(
+      4 * Runtime.getRuntime.availableProcessors,
+      DefaultBufferSize
+    )
+
+  val DefaultBufferSize: Int = 4096
+
+  private final class Stripe(bufferSize: Int) {
+
+    private val random = new CompletableFuture[SecureRandom]
+    private val buffer = new Array[Byte](bufferSize)
+    private var position = bufferSize
+
+    /** Create and seed the generator, prefetching a first buffer. Called from the seeding thread, or by the first
+      *  thread to need this stripe if that comes first.
+      */
+    def seed(): Unit =
+      if (!random.isDone) synchronized {
+        if (!random.isDone) {
+          val generator = newGenerator()
+          generator.nextBytes(buffer)
+          position = 0
+          random.complete(generator)
+        }
+      }
+
+    def nextBytes(bytes: Array[Byte], offset: Int, length: Int): Unit = {
+      if (!random.isDone) seed()
+      val generator = random.getNow(null)
+      synchronized {
+        var copied = 0
+        while (copied < length) {
+          if (position == bufferSize) {
+            generator.nextBytes(buffer)
+            position = 0
+          }
+          val chunk = math.min(length - copied, bufferSize - position)
+          System.arraycopy(buffer, position, bytes, offset + copied, chunk)
+          position += chunk
+          copied += chunk
+        }
+      }
+    }
+
+  }
+
+  private def newGenerator(): SecureRandom =
+    try SecureRandom.getInstance("DRBG")
+    catch {
+      case _: NoSuchAlgorithmException => new SecureRandom
+    }
+
+}
@@ -1,20 +1,17 @@
 package com.github.imcamilo.fernet
 
 import com.github.imcamilo.exceptions.{WHKeyException, WHTokenException}
-import org.slf4j.LoggerFactory
+import com.github.imcamilo.metrics.{FernetMetrics, Stage}
 
-import java.io.{ByteArrayOutputStream, DataOutputStream}
-import java.security.{
-  InvalidAlgorithmParameterException,
-  InvalidKeyException,
-  NoSuchAlgorithmException
-}
+import java.io.ByteArrayOutputStream
+import java.nio.ByteBuffer
+import java.security.{InvalidAlgorithmParameterException, InvalidKeyException}
 import java.time.Instant
 import java.util.Arrays.{copyOf, copyOfRange}
 import javax.crypto.Cipher.{DECRYPT_MODE, ENCRYPT_MODE}
 import javax.crypto._
 import javax.crypto.spec.{IvParameterSpec, SecretKeySpec}
-import scala.util.{Failure, Success, Try, Using}
+import scala.util.{Failure, Success, Try}
 
 /** Create a Key from individual components.
   *
@@ -23,11 +20,14 @@ import scala.util.{Failure, Success, Try, Using}
   *  @param encryptionKey
   *    a 128-bit (16 byte) key for encrypting and decrypting token contents.
   */
-class Key(val signingKey: Array[Byte], val encryptionKey: Array[Byte])
+class Key(val signingKey: Array[Byte], val encryptionKey: Array[Byte]) {
 
-object Key {
+  /** The crypto primitives bound to this key, resolved on first use and shared by every token handled with it. */
+  lazy val context: KeyContext = new KeyContext(this)
+
+}
 
-  private val logger = LoggerFactory.getLogger(getClass)
+object Key {
 
   import Constants._
 
@@ -45,34 +45,129 @@ object Key {
       payload: Array[Byte],
       initializationVector: IvParameterSpec,
       breadcrumbEncryptionKey: Array[Byte]
+  ): Array[Byte] =
+    encrypt(
+      KeyContext.newCipher(),
+      getEncryptionKeySpec(breadcrumbEncryptionKey),
+      payload,
+      initializationVector
+    )
+
+  /** Encrypt a payload with a given cipher, which is (re)initialised for encryption with the key spec.
+    *  @param cipher
+    *    an AES/CBC/PKCS5Padding cipher, e.g. the one cached by a [[KeyContext]]
+    *  @param encryptionKeySpec
+    *    the key spec of the encryption key
+    *  @param payload
+    *    the raw bytes of the data to store in a token
+    *  @param initializationVector
+    *    random bytes from a high-entropy source to initialise the AES cipher
+    *  @return
+    *    the AES-encrypted payload. The length will always be a multiple of 16 (128 bits).
+    */
+  def encrypt(
+      cipher: Cipher,
+      encryptionKeySpec: SecretKeySpec,
+      payload: Array[Byte],
+      initializationVector: IvParameterSpec
   ): Array[Byte] = {
-    val encryptionKeySpec = getEncryptionKeySpec(breadcrumbEncryptionKey)
     try {
-      val cipher = Cipher.getInstance(cipherTransformation)
       cipher.init(ENCRYPT_MODE, encryptionKeySpec, initializationVector)
       cipher.doFinal(payload)
-    } catch {
-      case e @ (_: NoSuchAlgorithmException | _: NoSuchPaddingException) =>
-        // these should not happen as we use an algorithm (AES) and padding (PKCS5) that are guaranteed to exist
-        throw new IllegalStateException(
-          "Unable to access cipher " + cipherTransformation + ": " + e.getMessage,
-          e
-        )
-      case e @ (_: InvalidKeyException |
-          _: InvalidAlgorithmParameterException) =>
-        // this should not happen as the key is validated ahead of time and
-        // we use an algorithm guaranteed to exist
-        throw new IllegalStateException(
-          "Unable to initialise encryption cipher with algorithm " + encryptionKeySpec.getAlgorithm + " and format " + encryptionKeySpec.getFormat + ": " + e.getMessage,
-          e
-        )
-      case e @ (_: IllegalBlockSizeException | _: BadPaddingException) =>
-        // these should not happen as we control the block size and padding
-        throw new IllegalStateException(
-          "Unable to encrypt data: " + e.getMessage,
-          e
-        )
-    }
+    } catch encryptionFailure(encryptionKeySpec)
+  }
+
+  /** Encrypt a slice of an array into another with a given cipher, which is (re)initialised for encryption with the
+    *  key spec. The slices must not overlap.
+    *  @param payload
+    *    an array holding the raw bytes of the data to store in a token at <em>payloadOffset</em>
+    *  @param output
+    *    the array receiving the AES-encrypted payload at <em>outputOffset</em>
+    *  @return
+    *    the number of bytes written to <em>output</em>, always a multiple of 16 (128 bits)
+    */
+  def encrypt(
+      cipher: Cipher,
+      encryptionKeySpec: SecretKeySpec,
+      payload: Array[Byte],
+      payloadOffset: Int,
+      payloadLength: Int,
+      initializationVector: IvParameterSpec,
+      output: Array[Byte],
+      outputOffset: Int
+  ): Int = {
+    try {
+      cipher.init(ENCRYPT_MODE, encryptionKeySpec, initializationVector)
+      cipher.doFinal(payload, payloadOffset, payloadLength, output, outputOffset)
+    } catch encryptionFailure(encryptionKeySpec)
+  }
+
+  /** Encrypt the remaining bytes of a (possibly direct) buffer straight into another one, without copying either to
+    *  the heap.
+    *  @param payload
+    *    the raw bytes of the data to store in a token, from its position to its limit. The position advances to the
+    *    limit.
+    *  @param initializationVector
+    *    random bytes from a high-entropy source to initialise the AES cipher
+    *  @param breadcrumbEncryptionKey
+    *    encryption key, for keeping immutable data
+    *  @param output
+    *    the buffer receiving the AES-encrypted payload at its position, which advances past it
+    *  @return
+    *    the number of bytes written to <em>output</em>, always a multiple of 16 (128 bits)
+    */
+  def encrypt(
+      payload: ByteBuffer,
+      initializationVector: IvParameterSpec,
+      breadcrumbEncryptionKey: Array[Byte],
+      output: ByteBuffer
+  ): Int =
+    encrypt(
+      KeyContext.newCipher(),
+      getEncryptionKeySpec(breadcrumbEncryptionKey),
+      payload,
+      initializationVector,
+      output
+    )
+
+  /** Encrypt the remaining bytes of a buffer into another one with a given cipher, which is (re)initialised for
+    *  encryption with the key spec.
+    */
+  def encrypt(
+      cipher: Cipher,
+      encryptionKeySpec: SecretKeySpec,
+      payload: ByteBuffer,
+      initializationVector: IvParameterSpec,
+      output: ByteBuffer
+  ): Int = {
+    try {
+      cipher.init(ENCRYPT_MODE, encryptionKeySpec, initializationVector)
+      cipher.doFinal(payload, output)
+    } catch encryptionFailure(encryptionKeySpec)
+  }
+
+  private[fernet] def encryptionFailure(
+      encryptionKeySpec: SecretKeySpec
+  ): PartialFunction[Throwable, Nothing] = {
+    case e @ (_: InvalidKeyException |
+        _: InvalidAlgorithmParameterException) =>
+      // this should not happen as the key is validated ahead of time and
+      // we use an algorithm guaranteed to exist
+      throw new IllegalStateException(
+        "Unable to initialise encryption cipher with algorithm " + encryptionKeySpec.getAlgorithm + " and format " + encryptionKeySpec.getFormat + ": " + e.getMessage,
+        e
+      )
+    case e @ (_: IllegalBlockSizeException | _: BadPaddingException) =>
+      // these should not happen as we control the block size and padding
+      throw new IllegalStateException(
+        "Unable to encrypt data: " + e.getMessage,
+        e
+      )
+    case sbe: ShortBufferException =>
+      throw new IllegalArgumentException(
+        "Output too small for the cipher text: " + sbe.getMessage,
+        sbe
+      )
   }
 
   /** @param string
@@ -81,11 +176,79 @@ object Key {
     *  Create a Key from a payload containing the signing and encryption key. Use a concatenatedKeys an array of 32 bytes
     *  of which the first 16 is the signing key and the last 16 is the encryption/decryption key
     *  @return
-    *    a WHKey case class from individual components.
+    *    a WHKey case class from individual components, or None if <em>string</em> is not Base 64 URL. Unlike the other
+    *    overloads, it does not check that <em>string</em> holds exactly 256 bits: missing bytes are taken as zeros and
+    *    extra bytes are ignored.
+    */
+  def apply(string: String): Option[Key] =
+    try fromConcatenatedKeys(decoder.decode(string))
+    catch {
+      case e: IllegalArgumentException =>
+        FailureLog.recordKeyFailure("exception decoding key", e)
+        None
+    }
+
+  /** Create a Key from its Base 64 URL encoding held in any sequence of characters, e.g. a CharBuffer, without
+    *  building a String first. See the String overload.
+    *  @return
+    *    the key, or None if <em>chars</em> is not the encoding of 256 bits
+    */
+  def apply(chars: CharSequence): Option[Key] =
+    decodeKey(
+      Base64Url.decodedLength(chars),
+      Base64Url.decode(chars, _, 0)
+    )
+
+  /** Create a Key from its Base 64 URL encoding held in a slice of ASCII bytes. See the String overload.
+    *  @return
+    *    the key, or None if the slice is not the encoding of 256 bits
+    */
+  def apply(ascii: Array[Byte], offset: Int, length: Int): Option[Key] =
+    decodeKey(
+      Base64Url.decodedLength(ascii, offset, length),
+      Base64Url.decode(ascii, offset, length, _, 0)
+    )
+
+  /** Create a Key from its Base 64 URL encoding held in ASCII from the position to the limit of a buffer, which is
+    *  left untouched. See the String overload.
+    *  @return
+    *    the key, or None if the buffer does not hold the encoding of 256 bits
     */
-  def apply(string: String): Option[Key] = {
-    val concatenatedKeys = decoder.decode(string)
+  def apply(ascii: ByteBuffer): Option[Key] =
+    decodeKey(
+      Base64Url.decodedLength(ascii),
+      Base64Url.decode(ascii, _, 0)
+    )
 
+  /** Decode a key once its decoded length is known to be right, so that no work is done on input of the wrong size.
+    *  The decoded bytes are zeroed once the key holds its copies.
+    */
+  private def decodeKey(
+      decodedLength: Int,
+      decode: Array[Byte] => Int
+  ): Option[Key] =
+    if (decodedLength != fernetKeyBytes) {
+      FailureLog.recordKeyFailure(
+        "exception decoding key",
+        new WHKeyException("Key must be 256 bits")
+      )
+      None
+    } else {
+      val concatenatedKeys = new Array[Byte](fernetKeyBytes)
+      try
+        if (decode(concatenatedKeys) < 0) {
+          FailureLog.recordKeyFailure(
+            "exception decoding key",
+            new WHKeyException("Key is not Base 64 URL encoded")
+          )
+          None
+        } else fromConcatenatedKeys(concatenatedKeys)
+      finally java.util.Arrays.fill(concatenatedKeys, 0.toByte)
+    }
+
+  private def fromConcatenatedKeys(
+      concatenatedKeys: Array[Byte]
+  ): Option[Key] = {
     val keyInstances = Try {
       creatingKeyInstance(
         copyOfRange(concatenatedKeys, 0, signingKeyBytes),
@@ -98,13 +261,10 @@ object Key {
 
     keyInstances.flatten match {
       case Failure(exception) =>
-        logger.error(
-          "exception creating key instance - " + exception.getMessage
-        )
+        FailureLog.recordKeyFailure("exception creating key instance", exception)
         None
       case Success(keys) => Option(new Key(keys._1, keys._2))
     }
-
   }
 
   def creatingKeyInstance(
@@ -131,22 +291,48 @@ object Key {
       cipherText: Array[Byte],
       breadcrumbSignKey: Array[Byte]
   ): Array[Byte] = {
-    Using(new ByteArrayOutputStream(tokenPrefixBytes + cipherText.length)) {
-      byteStream =>
-        sign(
-          version,
-          timestamp,
-          initializationVector,
-          cipherText,
-          byteStream,
-          breadcrumbSignKey
-        )
-    }.recover {
-      case e =>
-        throw new IllegalStateException(e.getMessage, e)
-    }.get
+    val mac = KeyContext.newMac()
+    initialiseMac(mac, getSigningKeySpec(breadcrumbSignKey))
+    sign(version, timestamp, initializationVector, cipherText, mac)
   }
 
+  /** Compute the HMAC of a token with a given Mac, already initialised with the signing key.
+    *  @param mac
+    *    an HmacSHA256 instance, e.g. the one cached by a [[KeyContext]]
+    *  @return
+    *    the 256 bit signature of Version | Timestamp | IV | Ciphertext
+    */
+  def sign(
+      version: Byte,
+      timestamp: Instant,
+      initializationVector: IvParameterSpec,
+      cipherText: Array[Byte],
+      mac: Mac
+  ): Array[Byte] = {
+    val iv = initializationVector.getIV
+    val signature = new Array[Byte](signatureBytes)
+    sign(
+      version,
+      timestamp.getEpochSecond,
+      iv,
+      0,
+      cipherText,
+      0,
+      cipherText.length,
+      mac,
+      signature,
+      0
+    )
+    signature
+  }
+
+  /** Compute the HMAC of a token, still writing the signed fields to <em>byteStream</em> as this overload always did,
+    *  although the signature no longer needs them there.
+    */
+  @deprecated(
+    "the signed fields are fed straight into the Mac; byteStream is still filled but no longer used for signing",
+    "0.1.0"
+  )
   def sign(
       version: Byte,
       timestamp: Instant,
@@ -155,34 +341,118 @@ object Key {
       byteStream: ByteArrayOutputStream,
       breadcrumbSignKey: Array[Byte]
   ): Array[Byte] = {
-    Using(new DataOutputStream(byteStream)) { dataStream =>
-      dataStream.writeByte(version)
-      dataStream.writeLong(timestamp.getEpochSecond)
-      dataStream.write(initializationVector.getIV)
-      dataStream.write(cipherText)
-      try {
-        val mac = Mac.getInstance(signingAlgorithm)
-        mac.init(getSigningKeySpec(breadcrumbSignKey))
-        mac.doFinal(byteStream.toByteArray)
-      } catch {
-        case ike: InvalidKeyException =>
-          // this should not happen because we control the signing key
-          // algorithm and pre-validate the length
-          throw new IllegalStateException(
-            "Unable to initialise HMAC with shared secret: " + ike.getMessage,
-            ike
-          )
-        case nsae: NoSuchAlgorithmException =>
-          // this should not happen as implementors are required to
-          // provide the HmacSHA256 algorithm.
-          throw new IllegalStateException(nsae.getMessage, nsae)
-      }
-    }.recover {
-      case error =>
-        throw new RuntimeException("exception sign key")
-    }.get
+    val timestampField = new Array[Byte](timestampBytes)
+    TokenView.writeLong(timestampField, 0, timestamp.getEpochSecond)
+    byteStream.write(version)
+    byteStream.write(timestampField)
+    byteStream.write(initializationVector.getIV)
+    byteStream.write(cipherText)
+    sign(version, timestamp, initializationVector, cipherText, breadcrumbSignKey)
+  }
+
+  /** Compute the HMAC of a token without building the signed message: the version, the big-endian timestamp, the
+    *  initialization vector and the cipher text are fed to the Mac one after the other, and the signature is written
+    *  to the output array. Nothing is allocated.
+    *  @param version
+    *    the version of the token
+    *  @param timestampSeconds
+    *    the time the token was generated, in seconds since the epoch
+    *  @param initializationVector
+    *    an array holding the 128 bit initialization vector at <em>initializationVectorOffset</em>
+    *  @param cipherText
+    *    an array holding the cipher text at <em>cipherTextOffset</em>
+    *  @param cipherTextLength
+    *    the length of the cipher text
+    *  @param mac
+    *    an HmacSHA256 instance, already initialised with the signing key
+    *  @param output
+    *    the array receiving the 256 bit signature at <em>outputOffset</em>
+    */
+  def sign(
+      version: Byte,
+      timestampSeconds: Long,
+      initializationVector: Array[Byte],
+      initializationVectorOffset: Int,
+      cipherText: Array[Byte],
+      cipherTextOffset: Int,
+      cipherTextLength: Int,
+      mac: Mac,
+      output: Array[Byte],
+      outputOffset: Int
+  ): Unit = {
+    mac.update(version)
+    var shift = 56
+    while (shift >= 0) {
+      mac.update((timestampSeconds >>> shift).toByte)
+      shift -= 8
+    }
+    mac.update(
+      initializationVector,
+      initializationVectorOffset,
+      initializationVectorBytes
+    )
+    mac.update(cipherText, cipherTextOffset, cipherTextLength)
+    doFinal(mac, output, outputOffset)
+  }
+
+  /** Compute the HMAC of a serialised token held in a (possibly direct) buffer.
+    *  @param signedBytes
+    *    the Version | Timestamp | IV | Ciphertext part of a token, from its position to its limit. The position
+    *    advances to the limit.
+    *  @param breadcrumbSignKey
+    *    signing key, for keeping immutable data
+    *  @return
+    *    the 256 bit signature
+    */
+  def sign(signedBytes: ByteBuffer, breadcrumbSignKey: Array[Byte]): Array[Byte] = {
+    val mac = KeyContext.newMac()
+    initialiseMac(mac, getSigningKeySpec(breadcrumbSignKey))
+    val signature = new Array[Byte](signatureBytes)
+    sign(signedBytes, mac, signature, 0)
+    signature
+  }
+
+  /** Compute the HMAC of a serialised token held in a buffer with a given Mac, already initialised with the signing
+    *  key, writing the signature to the output array.
+    */
+  def sign(
+      signedBytes: ByteBuffer,
+      mac: Mac,
+      output: Array[Byte],
+      outputOffset: Int
+  ): Unit = {
+    mac.update(signedBytes)
+    doFinal(mac, output, outputOffset)
   }
 
+  private def doFinal(mac: Mac, output: Array[Byte], outputOffset: Int): Unit =
+    try mac.doFinal(output, outputOffset)
+    catch {
+      case e: ShortBufferException =>
+        throw new IllegalStateException(
+          "Unable to write the signature: " + e.getMessage,
+          e
+        )
+    }
+
+  /** Initialise a Mac with the signing key. Once initialised, a Mac keeps the key across <em>doFinal</em> calls.
+    *  @param mac
+    *    an HmacSHA256 instance
+    *  @param signingKeySpec
+    *    the key spec of the signing key
+    */
+  def initialiseMac(mac: Mac, signingKeySpec: SecretKeySpec): Unit =
+    try mac.init(signingKeySpec)
+    catch {
+      case ike: InvalidKeyException =>
+        // this should not happen because we control the signing key
+        // algorithm and pre-validate the length
+        throw new IllegalStateException(
+          "Unable to initialise HMAC with shared secret: " + ike.getMessage,
+          ike
+        )
+    }
+
   def getSigningKeySpec(breadcrumbSigningKey: Array[Byte]): SecretKeySpec = {
     new SecretKeySpec(breadcrumbSigningKey, signingAlgorithm)
   }
@@ -212,28 +482,205 @@ object Key {
       cipherText: Array[Byte],
       initializationVector: IvParameterSpec,
       breadcrumbEncryptionKey: Array[Byte]
+  ): Array[Byte] =
+    decrypt(
+      KeyContext.newCipher(),
+      getEncryptionKeySpec(breadcrumbEncryptionKey),
+      cipherText,
+      initializationVector
+    )
+
+  /** Decrypt the payload of a Fernet token with a given cipher, which is (re)initialised for decryption with the key
+    *  spec. The same warning as for the other <em>decrypt</em> applies.
+    *  @param cipher
+    *    an AES/CBC/PKCS5Padding cipher, e.g. the one cached by a [[KeyContext]]
+    *  @param encryptionKeySpec
+    *    the key spec of the encryption key
+    *  @param cipherText
+    *    the verified padded encrypted payload of a token. The length <em>must</em> be a multiple of 16 (128 bits).
+    *  @param initializationVector
+    *    the random bytes used in the AES encryption of the token
+    *  @return
+    *    the decrypted payload
+    */
+  def decrypt(
+      cipher: Cipher,
+      encryptionKeySpec: SecretKeySpec,
+      cipherText: Array[Byte],
+      initializationVector: IvParameterSpec
+  ): Array[Byte] =
+    decrypt(
+      cipher,
+      encryptionKeySpec,
+      cipherText,
+      0,
+      cipherText.length,
+      initializationVector
+    )
+
+  /** Decrypt a slice holding the payload of a Fernet token with a given cipher. The same warning as for the other
+    *  <em>decrypt</em> applies.
+    *  @param cipherTextOffset
+    *    the position of the cipher text in <em>cipherText</em>
+    *  @param cipherTextLength
+    *    the length of the cipher text, a multiple of 16 (128 bits)
+    *  @return
+    *    the decrypted payload
+    */
+  def decrypt(
+      cipher: Cipher,
+      encryptionKeySpec: SecretKeySpec,
+      cipherText: Array[Byte],
+      cipherTextOffset: Int,
+      cipherTextLength: Int,
+      initializationVector: IvParameterSpec
   ): Array[Byte] = {
-    try {
-      val cipher = Cipher.getInstance(cipherTransformation)
-      cipher.init(
-        DECRYPT_MODE,
-        getEncryptionKeySpec(breadcrumbEncryptionKey),
-        initializationVector
-      )
-      cipher.doFinal(cipherText)
-    } catch {
-      case e @ (_: NoSuchAlgorithmException | _: NoSuchPaddingException |
-          _: InvalidKeyException | _: InvalidAlgorithmParameterException |
-          _: IllegalBlockSizeException) =>
-        // this should not happen as we use an algorithm (AES) and padding
-        // (PKCS5) that are guaranteed to exist.
-        // in addition, we validate the encryption key and initialization vector up front
-        throw new IllegalStateException(e.getMessage, e)
-      case bpe: BadPaddingException =>
-        throw new WHTokenException(
-          "Invalid padding in token: " + bpe.getMessage + " - Bad padding exception: " + bpe
-        )
+    val plainText = decryptOrNull(
+      cipher,
+      encryptionKeySpec,
+      cipherText,
+      cipherTextOffset,
+      cipherTextLength,
+      initializationVector
+    )
+    if (plainText == null)
+      throw new WHTokenException("Invalid padding in token")
+    plainText
+  }
+
+  /** Initialise the cipher for decryption and run <em>doFinal</em> with it, timing both as the decryption stage.
+    *  @param badPadding
+    *    the result reported when the payload is not correctly padded, instead of an exception
+    */
+  private def decrypting[@specialized(Int) R](
+      cipher: Cipher,
+      encryptionKeySpec: SecretKeySpec,
+      initializationVector: IvParameterSpec,
+      badPadding: R
+  )(doFinal: => R): R = {
+    val metrics = FernetMetrics.get
+    val started = metrics.start()
+    val result =
+      try {
+        cipher.init(DECRYPT_MODE, encryptionKeySpec, initializationVector)
+        doFinal
+      } catch {
+        case e @ (_: InvalidKeyException |
+            _: InvalidAlgorithmParameterException |
+            _: IllegalBlockSizeException) =>
+          // this should not happen as we use an algorithm (AES) and padding
+          // (PKCS5) that are guaranteed to exist.
+          // in addition, we validate the encryption key and initialization vector up front
+          throw new IllegalStateException(e.getMessage, e)
+        case sbe: ShortBufferException =>
+          // only a caller-supplied output can be too small, decrypting in place never is
+          throw new IllegalArgumentException(
+            "Output buffer too small for the payload: " + sbe.getMessage,
+            sbe
+          )
+        case _: BadPaddingException => badPadding
+      }
+    metrics.stop(Stage.Decrypt, started)
+    result
+  }
+
+  /** Decrypt a slice holding the payload of a Fernet token, reporting bad padding with null instead of an exception.
+    *  @return
+    *    the decrypted payload, or null if it is not correctly padded
+    */
+  private[fernet] def decryptOrNull(
+      cipher: Cipher,
+      encryptionKeySpec: SecretKeySpec,
+      cipherText: Array[Byte],
+      cipherTextOffset: Int,
+      cipherTextLength: Int,
+      initializationVector: IvParameterSpec
+  ): Array[Byte] =
+    decrypting(cipher, encryptionKeySpec, initializationVector, badPadding = null: Array[Byte]) {
+      cipher.doFinal(cipherText, cipherTextOffset, cipherTextLength)
+    }
+
+  /** Decrypt a slice holding the payload of a Fernet token over itself, with no array allocated for the plain text.
+    *  The cipher text is lost whether or not the padding is correct.
+    *  @return
+    *    the length of the decrypted payload, written at <em>cipherTextOffset</em>, or -1 if it is not correctly padded
+    */
+  private[fernet] def decryptInPlace(
+      cipher: Cipher,
+      encryptionKeySpec: SecretKeySpec,
+      bytes: Array[Byte],
+      cipherTextOffset: Int,
+      cipherTextLength: Int,
+      initializationVector: IvParameterSpec
+  ): Int =
+    decrypting(cipher, encryptionKeySpec, initializationVector, badPadding = -1) {
+      cipher.doFinal(bytes, cipherTextOffset, cipherTextLength, bytes, cipherTextOffset)
     }
+
+  /** Decrypt the payload of a Fernet token from a (possibly direct) buffer straight into another one, without copying
+    *  either to the heap. The same warning as for the other <em>decrypt</em> applies.
+    *  @param cipherText
+    *    the verified padded encrypted payload of a token, from its position to its limit. The position advances to the
+    *    limit.
+    *  @param initializationVector
+    *    the random bytes used in the AES encryption of the token
+    *  @param breadcrumbEncryptionKey
+    *    A breadcrumb. The Array of Bytes of the encryption key, just for immutable reasons.
+    *  @param output
+    *    the buffer receiving the decrypted payload at its position, which advances past it. It must have room for as
+    *    many bytes as the cipher text, padding included.
+    *  @return
+    *    the length of the decrypted payload
+    */
+  def decrypt(
+      cipherText: ByteBuffer,
+      initializationVector: IvParameterSpec,
+      breadcrumbEncryptionKey: Array[Byte],
+      output: ByteBuffer
+  ): Int =
+    decrypt(
+      KeyContext.newCipher(),
+      getEncryptionKeySpec(breadcrumbEncryptionKey),
+      cipherText,
+      initializationVector,
+      output
+    )
+
+  /** Decrypt the payload of a Fernet token from a buffer into another one with a given cipher, which is
+    *  (re)initialised for decryption with the key spec. The same warning as for the other <em>decrypt</em> applies.
+    */
+  def decrypt(
+      cipher: Cipher,
+      encryptionKeySpec: SecretKeySpec,
+      cipherText: ByteBuffer,
+      initializationVector: IvParameterSpec,
+      output: ByteBuffer
+  ): Int = {
+    val length = decryptOrFailure(
+      cipher,
+      encryptionKeySpec,
+      cipherText,
+      initializationVector,
+      output
+    )
+    if (length < 0) throw new WHTokenException("Invalid padding in token")
+    length
   }
 
+  /** Decrypt the payload of a Fernet token from a buffer into another one, reporting bad padding with -1 instead of an
+    *  exception.
+    *  @return
+    *    the length of the decrypted payload, or -1 if it is not correctly padded
+    */
+  private[fernet] def decryptOrFailure(
+      cipher: Cipher,
+      encryptionKeySpec: SecretKeySpec,
+      cipherText: ByteBuffer,
+      initializationVector: IvParameterSpec,
+      output: ByteBuffer
+  ): Int =
+    decrypting(cipher, encryptionKeySpec, initializationVector, badPadding = -1) {
+      cipher.doFinal(cipherText, output)
+    }
+
 }
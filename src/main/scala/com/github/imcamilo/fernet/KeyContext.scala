@@ -0,0 +1,379 @@
+package com.github.imcamilo.fernet
+
+import com.github.imcamilo.metrics.{FernetMetrics, Stage}
+
+import java.nio.ByteBuffer
+import java.security.{NoSuchAlgorithmException, Provider}
+import java.time.Instant
+import javax.crypto.spec.{IvParameterSpec, SecretKeySpec}
+import javax.crypto.{Cipher, Mac, NoSuchPaddingException}
+
+/** The crypto primitives bound to a single [[Key]], resolved once and reused for every token signed, verified,
+  *  encrypted or decrypted with it.
+  *
+  *  <p> The key specs are built when the context is created, so later modifications to the arrays of the Key do not
+  *  write through to this object. <em>Cipher</em> and <em>Mac</em> are not thread safe, so each thread gets its own
+  *  instance, created from the cached provider on first use. The Mac is initialised once with the signing key and
+  *  reset by every <em>doFinal</em>; the Cipher still has to be initialised per call because the initialization
+  *  vector changes with every token. </p>
+  *
+  *  @param key
+  *    the key this context is bound to
+  */
+final class KeyContext private[fernet] (val key: Key) {
+
+  import Constants._
+  import KeyContext._
+
+  val cipherProvider: Provider = KeyContext.cipherProvider
+  val macProvider: Provider = KeyContext.macProvider
+  val encryptionKeySpec: SecretKeySpec =
+    Key.getEncryptionKeySpec(key.encryptionKey)
+  val signingKeySpec: SecretKeySpec = Key.getSigningKeySpec(key.signingKey)
+
+  private val primitives: ThreadLocal[Primitives] =
+    ThreadLocal.withInitial(() => new Primitives(signingKeySpec))
+
+  /** @return the Cipher of the current thread, not initialised for any mode yet */
+  def cipher: Cipher = primitives.get.cipher
+
+  /** @return the Mac of the current thread, initialised with the signing key */
+  def mac: Mac = primitives.get.mac
+
+  /** Encrypt a payload to embed in a Fernet token, see [[Key.encrypt]].
+    *  @param payload
+    *    the raw bytes of the data to store in a token
+    *  @param initializationVector
+    *    random bytes from a high-entropy source to initialise the AES cipher
+    *  @return
+    *    the AES-encrypted payload. The length will always be a multiple of 16 (128 bits).
+    */
+  def encrypt(
+      payload: Array[Byte],
+      initializationVector: IvParameterSpec
+  ): Array[Byte] =
+    Key.encrypt(cipher, encryptionKeySpec, payload, initializationVector)
+
+  /** Decrypt the payload of a Fernet token, see [[Key.decrypt]]. Do not call this unless the cipher text has first
+    *  been verified.
+    *  @param cipherText
+    *    the verified padded encrypted payload of a token
+    *  @param initializationVector
+    *    the random bytes used in the AES encryption of the token
+    *  @return
+    *    the decrypted payload
+    */
+  def decrypt(
+      cipherText: Array[Byte],
+      initializationVector: IvParameterSpec
+  ): Array[Byte] =
+    Key.decrypt(cipher, encryptionKeySpec, cipherText, initializationVector)
+
+  /** Decrypt a slice holding the payload of a Fernet token, see [[Key.decrypt]]. Do not call this unless the cipher
+    *  text has first been verified.
+    *  @param initializationVector
+    *    an array holding the 128 bit initialization vector at <em>initializationVectorOffset</em>
+    *  @param cipherText
+    *    an array holding the verified padded encrypted payload at <em>cipherTextOffset</em>
+    *  @return
+    *    the decrypted payload
+    */
+  def decrypt(
+      initializationVector: Array[Byte],
+      initializationVectorOffset: Int,
+      cipherText: Array[Byte],
+      cipherTextOffset: Int,
+      cipherTextLength: Int
+  ): Array[Byte] =
+    Key.decrypt(
+      cipher,
+      encryptionKeySpec,
+      cipherText,
+      cipherTextOffset,
+      cipherTextLength,
+      new IvParameterSpec(
+        initializationVector,
+        initializationVectorOffset,
+        initializationVectorBytes
+      )
+    )
+
+  /** Decrypt a slice holding the verified payload of a Fernet token without throwing on bad padding.
+    *  @return
+    *    the decrypted payload, or null if it is not correctly padded
+    */
+  private[fernet] def decryptOrNull(
+      initializationVector: IvParameterSpec,
+      cipherText: Array[Byte],
+      cipherTextOffset: Int,
+      cipherTextLength: Int
+  ): Array[Byte] =
+    Key.decryptOrNull(
+      cipher,
+      encryptionKeySpec,
+      cipherText,
+      cipherTextOffset,
+      cipherTextLength,
+      initializationVector
+    )
+
+  /** Decrypt a slice holding the verified payload of a Fernet token over itself, without throwing on bad padding.
+    *  @return
+    *    the length of the decrypted payload, or -1 if it is not correctly padded
+    */
+  private[fernet] def decryptInPlace(
+      initializationVector: IvParameterSpec,
+      bytes: Array[Byte],
+      cipherTextOffset: Int,
+      cipherTextLength: Int
+  ): Int =
+    Key.decryptInPlace(
+      cipher,
+      encryptionKeySpec,
+      bytes,
+      cipherTextOffset,
+      cipherTextLength,
+      initializationVector
+    )
+
+  /** Decrypt a buffer holding the verified payload of a Fernet token without throwing on bad padding.
+    *  @return
+    *    the length of the decrypted payload, or -1 if it is not correctly padded
+    */
+  private[fernet] def decryptOrFailure(
+      cipherText: ByteBuffer,
+      initializationVector: IvParameterSpec,
+      output: ByteBuffer
+  ): Int =
+    Key.decryptOrFailure(
+      cipher,
+      encryptionKeySpec,
+      cipherText,
+      initializationVector,
+      output
+    )
+
+  /** Compute the HMAC of a token, see [[Key.sign]].
+    *  @return
+    *    the 256 bit signature of Version | Timestamp | IV | Ciphertext
+    */
+  def sign(
+      version: Byte,
+      timestamp: Instant,
+      initializationVector: IvParameterSpec,
+      cipherText: Array[Byte]
+  ): Array[Byte] =
+    Key.sign(version, timestamp, initializationVector, cipherText, mac)
+
+  /** Encrypt a slice of an array into another, see [[Key.encrypt]].
+    *  @return
+    *    the number of bytes written to <em>output</em>
+    */
+  def encrypt(
+      payload: Array[Byte],
+      payloadOffset: Int,
+      payloadLength: Int,
+      initializationVector: Array[Byte],
+      initializationVectorOffset: Int,
+      output: Array[Byte],
+      outputOffset: Int
+  ): Int =
+    Key.encrypt(
+      cipher,
+      encryptionKeySpec,
+      payload,
+      payloadOffset,
+      payloadLength,
+      new IvParameterSpec(
+        initializationVector,
+        initializationVectorOffset,
+        initializationVectorBytes
+      ),
+      output,
+      outputOffset
+    )
+
+  /** Encrypt the remaining bytes of a (possibly direct) buffer straight into another one, see [[Key.encrypt]].
+    *  @return
+    *    the number of bytes written to <em>output</em>
+    */
+  def encrypt(
+      payload: ByteBuffer,
+      initializationVector: IvParameterSpec,
+      output: ByteBuffer
+  ): Int =
+    Key.encrypt(cipher, encryptionKeySpec, payload, initializationVector, output)
+
+  /** Decrypt the remaining bytes of a (possibly direct) buffer straight into another one, see [[Key.decrypt]]. Do not
+    *  call this unless the cipher text has first been verified.
+    *  @return
+    *    the length of the decrypted payload
+    */
+  def decrypt(
+      cipherText: ByteBuffer,
+      initializationVector: IvParameterSpec,
+      output: ByteBuffer
+  ): Int =
+    Key.decrypt(cipher, encryptionKeySpec, cipherText, initializationVector, output)
+
+  /** Compute the HMAC of the Version | Timestamp | IV | Ciphertext bytes remaining in a buffer into the output array,
+    *  see [[Key.sign]].
+    */
+  def sign(signedBytes: ByteBuffer, output: Array[Byte], outputOffset: Int): Unit =
+    Key.sign(signedBytes, mac, output, outputOffset)
+
+  /** Recompute the HMAC of a serialised token held in a (possibly direct) buffer and compare it, in constant time,
+    *  with the one it carries. The position of the buffer is left untouched.
+    *  @param token
+    *    a token in the form Version | Timestamp | IV | Ciphertext | HMAC, from its position to its limit
+    *  @return
+    *    true if the signature matches
+    */
+  def isValidSignature(token: ByteBuffer): Boolean = {
+    val metrics = FernetMetrics.get
+    val started = metrics.start()
+    val current = primitives.get
+    val hmacPosition = token.limit() - signatureBytes
+    val signedBytes = token.duplicate
+    signedBytes.limit(hmacPosition)
+    Key.sign(signedBytes, current.mac, current.signature, 0)
+    var result = 0
+    var i = 0
+    while (i < signatureBytes) {
+      result |= current.signature(i) ^ token.get(hmacPosition + i)
+      i += 1
+    }
+    metrics.stop(Stage.VerifySignature, started)
+    result == 0
+  }
+
+  /** Compute the HMAC of a token into the output array, see [[Key.sign]]. Nothing is allocated. */
+  def sign(
+      version: Byte,
+      timestampSeconds: Long,
+      initializationVector: Array[Byte],
+      initializationVectorOffset: Int,
+      cipherText: Array[Byte],
+      cipherTextOffset: Int,
+      cipherTextLength: Int,
+      output: Array[Byte],
+      outputOffset: Int
+  ): Unit =
+    Key.sign(
+      version,
+      timestampSeconds,
+      initializationVector,
+      initializationVectorOffset,
+      cipherText,
+      cipherTextOffset,
+      cipherTextLength,
+      mac,
+      output,
+      outputOffset
+    )
+
+  /** Recompute the HMAC of a token and compare it, in constant time, with the one it carries. The signature is
+    *  computed into a buffer of the current thread, so nothing is allocated.
+    *  @param hmac
+    *    an array holding the 256 bit signature of the token at <em>hmacOffset</em>
+    *  @return
+    *    true if the signature matches
+    */
+  def isValidSignature(
+      version: Byte,
+      timestampSeconds: Long,
+      initializationVector: Array[Byte],
+      initializationVectorOffset: Int,
+      cipherText: Array[Byte],
+      cipherTextOffset: Int,
+      cipherTextLength: Int,
+      hmac: Array[Byte],
+      hmacOffset: Int
+  ): Boolean = {
+    val metrics = FernetMetrics.get
+    val started = metrics.start()
+    val current = primitives.get
+    Key.sign(
+      version,
+      timestampSeconds,
+      initializationVector,
+      initializationVectorOffset,
+      cipherText,
+      cipherTextOffset,
+      cipherTextLength,
+      current.mac,
+      current.signature,
+      0
+    )
+    val valid = isEqual(current.signature, 0, hmac, hmacOffset, signatureBytes)
+    metrics.stop(Stage.VerifySignature, started)
+    valid
+  }
+
+}
+
+object KeyContext {
+
+  import Constants._
+
+  /** The primitives of one thread: they must never be shared between threads. */
+  private final class Primitives(signingKeySpec: SecretKeySpec) {
+    val cipher: Cipher = newCipher()
+    val mac: Mac = newMac()
+    Key.initialiseMac(mac, signingKeySpec)
+    val signature: Array[Byte] = new Array[Byte](signatureBytes)
+  }
+
+  /** @return the context of the given key, created once per Key instance */
+  def apply(key: Key): KeyContext = key.context
+
+  /** The provider of AES/CBC/PKCS5Padding, looked up once per JVM. */
+  lazy val cipherProvider: Provider =
+    try Cipher.getInstance(cipherTransformation).getProvider
+    catch {
+      case e @ (_: NoSuchAlgorithmException | _: NoSuchPaddingException) =>
+        // these should not happen as we use an algorithm (AES) and padding (PKCS5) that are guaranteed to exist
+        throw new IllegalStateException(
+          "Unable to access cipher " + cipherTransformation + ": " + e.getMessage,
+          e
+        )
+    }
+
+  /** The provider of HmacSHA256, looked up once per JVM. */
+  lazy val macProvider: Provider =
+    try Mac.getInstance(signingAlgorithm).getProvider
+    catch {
+      case nsae: NoSuchAlgorithmException =>
+        // this should not happen as implementors are required to
+        // provide the HmacSHA256 algorithm.
+        throw new IllegalStateException(nsae.getMessage, nsae)
+    }
+
+  /** @return a new uninitialised Cipher from the cached provider */
+  def newCipher(): Cipher =
+    Cipher.getInstance(cipherTransformation, cipherProvider)
+
+  /** @return a new uninitialised Mac from the cached provider */
+  def newMac(): Mac = Mac.getInstance(signingAlgorithm, macProvider)
+
+  /** Compare two slices in time that depends only on their length, like <em>MessageDigest.isEqual</em>.
+    *  @return
+    *    true if the <em>length</em> bytes at <em>aOffset</em> in a are the same as those at <em>bOffset</em> in b
+    */
+  def isEqual(
+      a: Array[Byte],
+      aOffset: Int,
+      b: Array[Byte],
+      bOffset: Int,
+      length: Int
+  ): Boolean = {
+    var result = 0
+    var i = 0
+    while (i < length) {
+      result |= a(aOffset + i) ^ b(bOffset + i)
+      i += 1
+    }
+    result == 0
+  }
+
+}
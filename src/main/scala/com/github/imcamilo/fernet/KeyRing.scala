@@ -0,0 +1,184 @@
+package com.github.imcamilo.fernet
+
+import com.github.imcamilo.metrics.FernetMetrics
+import com.github.imcamilo.validators.Validator
+
+import java.security.SecureRandom
+import java.util.concurrent.atomic.{AtomicReference, LongAdder}
+import java.util.stream.IntStream
+
+/** The keys a token may have been issued with, e.g. during a key rotation. A Fernet token carries no key identifier,
+  *  so verification tries the HMAC of each key in turn, and decrypts only with the one that matched.
+  *
+  *  <p> Keys are tried in order of recent hit rate, so the key that signs most of the current traffic is usually the
+  *  first one tried. Hits are counted per key over windows of one second; a key that gets more hits in the current
+  *  window than the key tried before it overtakes it. Rings of at least <em>parallelThreshold</em> keys are searched
+  *  in parallel on the common ForkJoin pool. </p>
+  *
+  *  @param keys
+  *    the keys of the ring. The first one is the primary key, used to generate new tokens.
+  *  @param parallelThreshold
+  *    the number of keys from which the HMAC trials run in parallel
+  */
+final class KeyRing(
+    val keys: IndexedSeq[Key],
+    val parallelThreshold: Int = KeyRing.DefaultParallelThreshold
+) {
+
+  import KeyRing._
+
+  require(keys.nonEmpty, "A key ring needs at least one key")
+
+  private val ring: Array[Key] = keys.toArray
+
+  /** Positions in <em>ring</em>, in the order they are tried. Replaced as a whole when two keys swap places. */
+  private val order = new AtomicReference[Array[Int]](Array.range(0, ring.length))
+
+  private val window =
+    new AtomicReference[HitWindow](new HitWindow(System.nanoTime, ring.length))
+
+  /** @return the key new tokens are generated with */
+  def primary: Key = ring(0)
+
+  /** @return the positions of the keys in the order they are currently tried */
+  def currentOrder: IndexedSeq[Int] = order.get.toIndexedSeq
+
+  def generate(plainText: String): Token = Token.generate(primary, plainText)
+
+  def generate(random: SecureRandom, payload: Array[Byte]): Token =
+    Token.generate(random, primary, payload)
+
+  /** Decode, verify and decrypt a token string against the keys of the ring, see [[Token.validateAndDecrypt]].
+    *  @return
+    *    the payload of the token and the key that signed it, or the reason it was rejected
+    */
+  def validateAndDecrypt[A](
+      token: String,
+      validator: Validator[A]
+  ): Either[FailureReason, Match[A]] = {
+    val bytes =
+      try Constants.decoder.decode(token)
+      catch {
+        case _: IllegalArgumentException => return Left(FailureReason.Malformed)
+      }
+    validateAndDecrypt(bytes, 0, bytes.length, validator)
+  }
+
+  /** Verify and decrypt a token read in place against the keys of the ring.
+    *  @return
+    *    the payload of the token and the key that signed it, or the reason it was rejected
+    */
+  def validateAndDecrypt[A](
+      token: TokenView,
+      validator: Validator[A]
+  ): Either[FailureReason, Match[A]] =
+    validateAndDecrypt(token.bytes, token.offset, token.length, validator)
+
+  /** Verify and decrypt a token held in a slice of an array against the keys of the ring.
+    *  @return
+    *    the payload of the token and the key that signed it, or the reason it was rejected
+    */
+  def validateAndDecrypt[A](
+      bytes: Array[Byte],
+      offset: Int,
+      length: Int,
+      validator: Validator[A]
+  ): Either[FailureReason, Match[A]] = {
+    val rejected = Token.checkHeader(bytes, offset, length, validator)
+    val result =
+      if (rejected != null) Left(rejected)
+      else {
+        val index = indexOf(bytes, offset, length)
+        if (index < 0) Left(FailureReason.SignatureMismatch)
+        else {
+          val key = ring(index)
+          Token
+            .decryptVerified(bytes, offset, length, key, validator)
+            .map(payload => Match(key, index, payload))
+        }
+      }
+    FernetMetrics.get.recordOutcome(result)
+    result
+  }
+
+  /** Find the key a token was signed with, by HMAC only. The token is neither decrypted nor checked against any
+    *  validity window.
+    *  @param bytes
+    *    an array holding a Fernet token of valid layout at <em>offset</em>
+    *  @return
+    *    the position of the key in the ring, or -1 if no key matches
+    */
+  def indexOf(bytes: Array[Byte], offset: Int, length: Int): Int = {
+    val tried = order.get
+    def signedWith(p: Int): Boolean =
+      Token.isValidSignature(bytes, offset, length, ring(tried(p)))
+    val position =
+      if (tried.length < parallelThreshold) {
+        var p = 0
+        while (p < tried.length && !signedWith(p)) p += 1
+        if (p < tried.length) p else -1
+      } else
+        IntStream
+          .range(0, tried.length)
+          .parallel()
+          .filter(p => signedWith(p))
+          .findAny()
+          .orElse(-1)
+    if (position < 0) -1
+    else {
+      recordHit(tried, position)
+      tried(position)
+    }
+  }
+
+  private def recordHit(tried: Array[Int], position: Int): Unit = {
+    val hits = currentWindow()
+    val index = tried(position)
+    hits.counts(index).increment()
+    if (position > 0) {
+      val ahead = tried(position - 1)
+      if (hits.counts(index).sum > hits.counts(ahead).sum) {
+        val swapped = tried.clone()
+        swapped(position - 1) = index
+        swapped(position) = ahead
+        // losing the race only delays the swap to the next hit
+        order.compareAndSet(tried, swapped)
+      }
+    }
+  }
+
+  private def currentWindow(): HitWindow = {
+    val current = window.get
+    val now = System.nanoTime
+    if (now - current.start < WindowNanos) current
+    else {
+      val next = new HitWindow(now, ring.length)
+      if (window.compareAndSet(current, next)) next else window.get
+    }
+  }
+
+}
+
+object KeyRing {
+
+  val DefaultParallelThreshold: Int = 16
+
+  private val WindowNanos: Long = 1000000000L
+
+  /** @param key
+    *    the key that signed the token
+    *  @param index
+    *    the position of the key in the ring
+    *  @param payload
+    *    the decrypted, deserialised payload of the token
+    */
+  final case class Match[A](key: Key, index: Int, payload: A)
+
+  private final class HitWindow(val start: Long, size: Int) {
+    val counts: Array[LongAdder] = Array.fill(size)(new LongAdder)
+  }
+
+  def apply(primary: Key, others: Key*): KeyRing =
+    new KeyRing(primary +: others.toIndexedSeq)
+
+}
@@ -0,0 +1,153 @@
+package com.github.imcamilo.fernet
+
+import com.github.imcamilo.validators.Validator
+
+import java.security.SecureRandom
+import java.util.concurrent.atomic.AtomicReferenceArray
+
+/** A small cache of the token strings recently rejected, so that a forged or malformed token replayed many times is
+  *  turned away before it is decoded and its HMAC computed again.
+  *
+  *  <p> Tokens are identified by two 64 bit hashes of their string, keyed with seeds drawn when the cache is created
+  *  so that they cannot be predicted from outside. The cache is a fixed array of immutable entries written without
+  *  locks: a new rejection simply replaces whatever entry shares its slot, so the memory used is bounded by
+  *  <em>capacity</em>. An entry is ignored once it is older than <em>retentionMillis</em>. </p>
+  *
+  *  <p> A rejection only holds for the key, or key ring, and the validator it was found with, so a cache should not
+  *  be shared between them. Only the reasons that hold for the token whatever the state of the server are cached,
+  *  see [[NegativeCache.isCacheable]]: a token from the future may become valid before the retention ends, and one
+  *  turned away by a full replay store may be accepted once the store has room. </p>
+  *
+  *  @param capacity
+  *    the number of slots, rounded up to a power of two
+  *  @param retentionMillis
+  *    how long a rejection is remembered
+  */
+final class NegativeCache(
+    val capacity: Int = NegativeCache.DefaultCapacity,
+    val retentionMillis: Long = NegativeCache.DefaultRetentionMillis
+) {
+
+  import NegativeCache._
+
+  require(capacity > 0, "capacity must be positive")
+  require(retentionMillis >= 0, "retention must not be negative")
+
+  private val slots =
+    new AtomicReferenceArray[Entry](Integer.highestOneBit(capacity - 1) << 1 max 1)
+  private val retentionNanos = retentionMillis * 1000000L
+  private val (seed1, seed2) = {
+    val random = new SecureRandom
+    (random.nextLong, random.nextLong)
+  }
+
+  /** @return the reason <em>token</em> was recently rejected for, or null if it was not */
+  def get(token: CharSequence): FailureReason = {
+    val hash1 = hash(token, seed1)
+    val entry = slots.get(hash1.toInt & (slots.length - 1))
+    if (
+      entry != null && entry.hash1 == hash1 && entry.hash2 == hash(token, seed2) &&
+      System.nanoTime - entry.rejectedAt < retentionNanos
+    ) entry.reason
+    else null
+  }
+
+  /** Remember that <em>token</em> was rejected for <em>reason</em>. */
+  def put(token: CharSequence, reason: FailureReason): Unit =
+    if (isCacheable(reason)) {
+      val hash1 = hash(token, seed1)
+      slots.lazySet(
+        hash1.toInt & (slots.length - 1),
+        new Entry(hash1, hash(token, seed2), System.nanoTime, reason)
+      )
+    }
+
+  /** Forget every rejection, e.g. after a key is added. */
+  def clear(): Unit = {
+    var i = 0
+    while (i < slots.length) {
+      slots.set(i, null)
+      i += 1
+    }
+  }
+
+  /** Decode, verify and decrypt a token string, see [[Token.validateAndDecrypt]], unless it was recently rejected.
+    *  @return
+    *    the decrypted, deserialised payload of the token, or the reason it was rejected
+    */
+  def validateAndDecrypt[A](
+      token: String,
+      key: Key,
+      validator: Validator[A]
+  ): Either[FailureReason, A] = {
+    val cached = get(token)
+    if (cached != null) Left(cached)
+    else remember(token, Token.validateAndDecrypt(token, key, validator))
+  }
+
+  /** Decode, verify and decrypt a token string against the keys of a ring, see [[KeyRing.validateAndDecrypt]], unless
+    *  it was recently rejected.
+    *  @return
+    *    the payload of the token and the key that signed it, or the reason it was rejected
+    */
+  def validateAndDecrypt[A](
+      token: String,
+      ring: KeyRing,
+      validator: Validator[A]
+  ): Either[FailureReason, KeyRing.Match[A]] = {
+    val cached = get(token)
+    if (cached != null) Left(cached)
+    else remember(token, ring.validateAndDecrypt(token, validator))
+  }
+
+  private def remember[B](
+      token: String,
+      result: Either[FailureReason, B]
+  ): Either[FailureReason, B] = {
+    result match {
+      case Left(reason) => put(token, reason)
+      case _            =>
+    }
+    result
+  }
+
+}
+
+object NegativeCache {
+
+  val DefaultCapacity: Int = 1024
+  val DefaultRetentionMillis: Long = 5000
+
+  /** @return true if a token rejected for <em>reason</em> is rejected again for as long as it is retained */
+  def isCacheable(reason: FailureReason): Boolean = reason match {
+    case FailureReason.Malformed | FailureReason.BadVersion |
+        FailureReason.SignatureMismatch | FailureReason.BadPadding |
+        FailureReason.Expired | FailureReason.Revoked |
+        FailureReason.Replayed =>
+      true
+    case _ => false
+  }
+
+  private final class Entry(
+      val hash1: Long,
+      val hash2: Long,
+      val rejectedAt: Long,
+      val reason: FailureReason
+  )
+
+  /** A seeded 64 bit hash of the characters, FNV-1a style mixing finished with the MurmurHash3 finaliser. */
+  private def hash(chars: CharSequence, seed: Long): Long = {
+    var h = seed ^ chars.length
+    var i = 0
+    while (i < chars.length) {
+      h = (h ^ chars.charAt(i)) * 0x100000001b3L
+      i += 1
+    }
+    h ^= h >>> 33
+    h *= 0xff51afd7ed558ccdL
+    h ^= h >>> 33
+    h *= 0xc4ceb9fe1a85ec53L
+    h ^ (h >>> 33)
+  }
+
+}
@@ -0,0 +1,67 @@
+package com.github.imcamilo.fernet
+
+import java.nio.ByteBuffer
+import java.nio.charset.Charset
+import java.util.Arrays.{copyOfRange, fill}
+
+/** The payload of a token decrypted in place, over the cipher text of the array the token was decoded into, see
+  *  [[Token.decryptInPlace]]. Like [[TokenView]] it is an offset and a length into <em>bytes</em>, so reading it
+  *  copies nothing. Closing it zeroes the whole token, payload included, so that the plain text does not linger on
+  *  the heap until the array is collected.
+  *
+  *  @param bytes
+  *    the array holding the payload
+  *  @param offset
+  *    the position of the payload in <em>bytes</em>
+  *  @param length
+  *    the length of the payload
+  */
+final class PlainText private[fernet] (
+    val bytes: Array[Byte],
+    val offset: Int,
+    val length: Int,
+    tokenOffset: Int,
+    tokenLength: Int
+) extends AutoCloseable {
+
+  @volatile private var closed = false
+
+  def isClosed: Boolean = closed
+
+  /** @return the byte at <em>index</em> of the payload */
+  def apply(index: Int): Byte = {
+    ensureOpen()
+    if (index < 0 || index >= length)
+      throw new IndexOutOfBoundsException(
+        "Index " + index + " out of bounds for length " + length
+      )
+    bytes(offset + index)
+  }
+
+  /** @return a read only buffer over the payload, valid until this is closed */
+  def asBuffer: ByteBuffer = {
+    ensureOpen()
+    ByteBuffer.wrap(bytes, offset, length).slice().asReadOnlyBuffer()
+  }
+
+  /** @return a copy of the payload, which closing this does not zero */
+  def toArray: Array[Byte] = {
+    ensureOpen()
+    copyOfRange(bytes, offset, offset + length)
+  }
+
+  def toString(charset: Charset): String = {
+    ensureOpen()
+    new String(bytes, offset, length, charset)
+  }
+
+  /** Zero the token this payload was decrypted from. */
+  override def close(): Unit = {
+    closed = true
+    fill(bytes, tokenOffset, tokenOffset + tokenLength, 0.toByte)
+  }
+
+  private def ensureOpen(): Unit =
+    if (closed) throw new IllegalStateException("Plain text is closed")
+
+}
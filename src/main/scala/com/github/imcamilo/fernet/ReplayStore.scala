@@ -0,0 +1,220 @@
+package com.github.imcamilo.fernet
+
+import com.github.imcamilo.validators.{TokenCheck, Validator, VerifiedTokenCache}
+
+import java.lang.invoke.{MethodHandles, VarHandle}
+import java.nio.{ByteBuffer, ByteOrder}
+
+/** Remembers the tokens already used, so that single-use tokens (password reset, email confirmation, ...) are
+  *  rejected when they are presented again. Install it with
+  *  [[com.github.imcamilo.validators.Validator.getTokenChecks]] of the validator it is built from: the first
+  *  verification of a token marks it as used and any later one is rejected as [[FailureReason.Replayed]].
+  *
+  *  <p> The store is an open-addressing hash table held off-heap, in direct buffers of at most 1 GiB each, so that
+  *  tens of millions of entries put no pressure on the garbage collector. A slot is 16 bytes: the first 8 bytes of
+  *  the HMAC of the token, and the second at which the token expires, its timestamp plus the time to live of the
+  *  validator. </p>
+  *
+  *  <p> Inserts are lock-free. A thread claims a slot by a compare-and-set of its expiry to <em>Long.MaxValue</em>,
+  *  writes the token, then publishes the real expiry; a thread meeting a claimed slot waits for it to be published.
+  *  The slot of an expired token is not emptied, which would cut the probe sequences running through it, but is
+  *  reclaimed in place by the next insert probing it, so expired entries are recycled incrementally as tokens come
+  *  in. When no slot is free within [[ReplayStore.MaxProbes]] of its home slot the token is rejected as
+  *  [[FailureReason.ReplayStoreFull]]. </p>
+  *
+  *  <p> Callers whose clocks straddle a tick may disagree on whether a slot has expired, and so insert the same token
+  *  in two slots. After publishing, an insert looks for another live copy of its token and, if it finds one, gives
+  *  its slot back and rejects the token as [[FailureReason.Replayed]]. Such a race may reject both uses, never accept
+  *  both. </p>
+  *
+  *  @param capacity
+  *    the number of live tokens the store is sized for. The table has twice as many slots, rounded up to a power of
+  *    two, so it takes about 32 bytes per token.
+  *  @param validator
+  *    the validator the store is installed in, whose time to live tells how long a token is remembered and whose
+  *    clock tells when it has expired. Taking both from the validator keeps the store from forgetting a token the
+  *    validator still accepts.
+  */
+final class ReplayStore(
+    val capacity: Int,
+    val validator: Validator[_]
+) extends TokenCheck {
+
+  import ReplayStore._
+
+  require(capacity > 0, "capacity must be positive")
+
+  /** The number of slots, a power of two. */
+  val slots: Long = {
+    val wanted = capacity * 2L
+    if (wanted <= 1) 1L else java.lang.Long.highestOneBit(wanted - 1) << 1
+  }
+
+  private val probeLimit = math.min(slots, MaxProbes.toLong).toInt
+
+  private val slotsPerSegment = math.min(slots, MaxSegmentSlots).toInt
+  private val segmentShift = Integer.numberOfTrailingZeros(slotsPerSegment)
+  private val segments = Array.fill((slots / slotsPerSegment).toInt)(
+    ByteBuffer.allocateDirect(slotsPerSegment * SlotBytes).order(ByteOrder.nativeOrder)
+  )
+
+  override def check(
+      hmac: Array[Byte],
+      hmacOffset: Int,
+      timestampSeconds: Long
+  ): FailureReason =
+    markUsed(
+      hmac,
+      hmacOffset,
+      // read at each check, as the store is usually built while the validator is
+      VerifiedTokenCache.expiresAt(timestampSeconds, validator.timeToLiveSeconds),
+      validator.currentEpochSecond
+    )
+
+  /** Mark the token with this HMAC as used until <em>expiresAt</em>.
+    *  @param expiresAt
+    *    the first second, since the epoch, at which the token is expired
+    *  @param now
+    *    the current time, in seconds since the epoch
+    *  @return
+    *    null if the token was not used yet, [[FailureReason.Replayed]] if it was, or [[FailureReason.ReplayStoreFull]]
+    *    if there is no room left to remember it
+    */
+  def markUsed(
+      hmac: Array[Byte],
+      hmacOffset: Int,
+      expiresAt: Long,
+      now: Long
+  ): FailureReason = {
+    val digest = {
+      val head = TokenView.readLong(hmac, hmacOffset)
+      if (head == 0L) 1L else head // 0 marks a slot never used
+    }
+    val home = TokenView.readLong(hmac, hmacOffset + 8) & (slots - 1)
+    while (true) {
+      var reusable = -1L
+      var reusableExpiry = 0L
+      var probe = 0
+      var done = false
+      while (!done && probe < probeLimit) {
+        val slot = (home + probe) & (slots - 1)
+        val expiry = awaitPublished(slot)
+        if (expiry == 0L) {
+          // no probe sequence runs past a slot never used
+          if (reusable < 0) {
+            reusable = slot
+            reusableExpiry = 0L
+          }
+          done = true
+        } else if (expiry <= now) {
+          if (reusable < 0) {
+            reusable = slot
+            reusableExpiry = expiry
+          }
+        } else if (key(slot) == digest) return FailureReason.Replayed
+        probe += 1
+      }
+      if (reusable < 0) return FailureReason.ReplayStoreFull
+      if (claim(reusable, reusableExpiry)) {
+        // an expiry of Long.MaxValue would read as a claimed slot
+        val expiry = math.min(math.max(expiresAt, now + 1), Claimed - 1)
+        publish(reusable, digest, expiry)
+        // callers disagreeing on now by a tick may see the same slot as live or expired, so two of them can insert
+        // the same token in different slots: whoever finds another copy after publishing its own backs out
+        if (!hasOtherCopy(home, digest, reusable, now)) return null
+        retract(reusable)
+        return FailureReason.Replayed
+      }
+      // another thread took the slot first, look again in case it was for the same token
+    }
+    null
+  }
+
+  /** @return true if the token with this HMAC is remembered as used at <em>now</em> */
+  def isUsed(hmac: Array[Byte], hmacOffset: Int, now: Long): Boolean = {
+    val digest = {
+      val head = TokenView.readLong(hmac, hmacOffset)
+      if (head == 0L) 1L else head
+    }
+    val home = TokenView.readLong(hmac, hmacOffset + 8) & (slots - 1)
+    var probe = 0
+    while (probe < probeLimit) {
+      val slot = (home + probe) & (slots - 1)
+      val expiry = awaitPublished(slot)
+      if (expiry == 0L) return false
+      if (expiry > now && key(slot) == digest) return true
+      probe += 1
+    }
+    false
+  }
+
+  private def segment(slot: Long): ByteBuffer =
+    segments((slot >>> segmentShift).toInt)
+
+  private def offset(slot: Long): Int =
+    (slot & (slotsPerSegment - 1)).toInt * SlotBytes
+
+  private def key(slot: Long): Long =
+    longs.getAcquire(segment(slot), offset(slot))
+
+  /** @return the expiry of the slot, once any insert in progress in it is published */
+  private def awaitPublished(slot: Long): Long = {
+    var expiry: Long = longs.getAcquire(segment(slot), offset(slot) + 8)
+    while (expiry == Claimed) {
+      Thread.onSpinWait()
+      expiry = longs.getAcquire(segment(slot), offset(slot) + 8)
+    }
+    expiry
+  }
+
+  private def claim(slot: Long, expected: Long): Boolean =
+    longs.compareAndSet(segment(slot), offset(slot) + 8, expected, Claimed)
+
+  private def publish(slot: Long, digest: Long, expiresAt: Long): Unit = {
+    longs.setRelease(segment(slot), offset(slot), digest)
+    // volatile, so that of two threads publishing the same token at least one sees the other in hasOtherCopy
+    longs.setVolatile(segment(slot), offset(slot) + 8, expiresAt)
+  }
+
+  /** @return true if a slot other than <em>own</em> on the probe sequence holds a live copy of the token */
+  private def hasOtherCopy(
+      home: Long,
+      digest: Long,
+      own: Long,
+      now: Long
+  ): Boolean = {
+    var probe = 0
+    while (probe < probeLimit) {
+      val slot = (home + probe) & (slots - 1)
+      var expiry: Long = longs.getVolatile(segment(slot), offset(slot) + 8)
+      while (expiry == Claimed) {
+        Thread.onSpinWait()
+        expiry = longs.getVolatile(segment(slot), offset(slot) + 8)
+      }
+      if (expiry == 0L) return false
+      if (slot != own && expiry > now && key(slot) == digest) return true
+      probe += 1
+    }
+    false
+  }
+
+  /** Give back a published slot: it reads as expired, so it keeps the probe sequences running through it. */
+  private def retract(slot: Long): Unit =
+    longs.setVolatile(segment(slot), offset(slot) + 8, Retracted)
+
+}
+
+object ReplayStore {
+
+  /** The number of slots an insert or a lookup looks at from the home slot of a token. */
+  val MaxProbes: Int = 64
+
+  private val SlotBytes = 16
+  private val MaxSegmentSlots = 1L << 26 // 1 GiB
+  private val Claimed = Long.MaxValue
+  private val Retracted = 1L
+
+  private val longs: VarHandle =
+    MethodHandles.byteBufferViewVarHandle(classOf[Array[Long]], ByteOrder.nativeOrder)
+
+}
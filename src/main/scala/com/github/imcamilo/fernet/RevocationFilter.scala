@@ -0,0 +1,322 @@
+package com.github.imcamilo.fernet
+
+import com.github.imcamilo.validators.TokenCheck
+
+import java.io.IOException
+import java.lang.invoke.{MethodHandles, VarHandle}
+import java.nio.channels.FileChannel
+import java.nio.channels.FileChannel.MapMode
+import java.nio.file.StandardCopyOption.{ATOMIC_MOVE, REPLACE_EXISTING}
+import java.nio.file.StandardOpenOption.{READ, WRITE}
+import java.nio.file.{FileAlreadyExistsException, Files, Path}
+import java.nio.{ByteOrder, MappedByteBuffer}
+import java.util.concurrent.ConcurrentHashMap
+
+/** A set of revoked tokens, identified by their HMAC, kept in a memory-mapped file so that every JVM on the host that
+  *  maps the same file sees the same revocations without any network call.
+  *
+  *  <p> The file holds a blocked Bloom filter, in which each HMAC sets 7 bits of a single 64 byte block, followed by an
+  *  exact open-addressing table of the revoked HMACs. A token is revoked only if all its bits are set and its HMAC is
+  *  found in the table, so the filter answers most lookups of tokens that are not revoked with one cache line and
+  *  never reports a false positive. </p>
+  *
+  *  <p> Readers take no lock. Writers take an exclusive lock on the file, write the HMAC into the table and only then
+  *  set its bits with release semantics, so a reader that finds all the bits set also finds the complete HMAC. File
+  *  locks are held by the whole JVM, so writers first serialise on a monitor shared by every instance opened on the
+  *  same file in the JVM. Read only instances, see [[RevocationFilter.openReadOnly]], cannot revoke. </p>
+  *
+  *  <p> Revocations are never removed, so the capacity must cover the tokens revoked over the life of the file; use
+  *  a new file, e.g. per key, to start afresh. </p>
+  */
+final class RevocationFilter private (
+    path: Path,
+    channel: FileChannel,
+    writers: AnyRef,
+    buffer: MappedByteBuffer,
+    val capacity: Int,
+    blocks: Int,
+    slots: Int,
+    writable: Boolean
+) extends TokenCheck
+    with AutoCloseable {
+
+  import RevocationFilter._
+
+  private val tableOffset = HeaderBytes + blocks * BlockBytes
+
+  /** @return true if the token with this HMAC was revoked */
+  def isRevoked(hmac: Array[Byte], hmacOffset: Int): Boolean = {
+    val block = HeaderBytes + (word(hmac, hmacOffset, 0) & (blocks - 1)).toInt * BlockBytes
+    val bits = word(hmac, hmacOffset, 1)
+    var i = 0
+    while (i < BitsPerKey) {
+      val bit = ((bits >>> (i * 9)) & 511).toInt
+      val set: Long = longs.getAcquire(buffer, block + (bit >>> 6) * 8)
+      if ((set & (1L << (bit & 63))) == 0) return false
+      i += 1
+    }
+    findSlot(hmac, hmacOffset) >= 0
+  }
+
+  def isRevoked(token: Token): Boolean = isRevoked(token.hmac, 0)
+
+  def isRevoked(token: TokenView): Boolean =
+    isRevoked(token.bytes, token.hmacOffset)
+
+  override def check(
+      hmac: Array[Byte],
+      hmacOffset: Int,
+      timestampSeconds: Long
+  ): FailureReason =
+    if (isRevoked(hmac, hmacOffset)) FailureReason.Revoked else null
+
+  /** Revoke the token with this HMAC, for every JVM mapping the file.
+    *  @return
+    *    true if the token was not revoked yet
+    *  @throws IllegalStateException
+    *    if the filter is read only or full
+    */
+  def revoke(hmac: Array[Byte], hmacOffset: Int): Boolean = {
+    if (!writable)
+      throw new IllegalStateException("Revocation filter is read only: " + path)
+    // a second lock on the file from this JVM would throw OverlappingFileLockException instead of waiting
+    writers.synchronized {
+      val lock = channel.lock()
+      try {
+        if (findSlot(hmac, hmacOffset) >= 0) false
+        else {
+          val count = size
+          if (count >= capacity)
+            throw new IllegalStateException("Revocation filter is full: " + path)
+          val slot = emptySlot(hmac, hmacOffset)
+          var i = 0
+          while (i < 4) {
+            longs.setRelease(buffer, slot + i * 8, word(hmac, hmacOffset, i))
+            i += 1
+          }
+          setBits(hmac, hmacOffset)
+          ints.setRelease(buffer, CountOffset, count + 1)
+          true
+        }
+      } finally lock.release()
+    }
+  }
+
+  def revoke(token: Token): Boolean = revoke(token.hmac, 0)
+
+  def revoke(token: TokenView): Boolean = revoke(token.bytes, token.hmacOffset)
+
+  /** @return the number of tokens revoked */
+  def size: Int = ints.getAcquire(buffer, CountOffset)
+
+  /** Write the revocations made through this instance to the storage device. Other JVMs see them without it. */
+  def force(): Unit = buffer.force()
+
+  override def close(): Unit = channel.close()
+
+  private def setBits(hmac: Array[Byte], hmacOffset: Int): Unit = {
+    val block = HeaderBytes + (word(hmac, hmacOffset, 0) & (blocks - 1)).toInt * BlockBytes
+    val bits = word(hmac, hmacOffset, 1)
+    var i = 0
+    while (i < BitsPerKey) {
+      val bit = ((bits >>> (i * 9)) & 511).toInt
+      val index = block + (bit >>> 6) * 8
+      val set: Long = longs.getAcquire(buffer, index)
+      longs.setRelease(buffer, index, set | (1L << (bit & 63)))
+      i += 1
+    }
+  }
+
+  /** @return the position of the HMAC in the table, or -1 if it is not there */
+  private def findSlot(hmac: Array[Byte], hmacOffset: Int): Int = {
+    var slot = (word(hmac, hmacOffset, 2) & (slots - 1)).toInt
+    var probes = 0
+    while (probes < slots) {
+      val position = tableOffset + slot * SlotBytes
+      if (isEmpty(position)) return -1
+      if (matches(position, hmac, hmacOffset)) return position
+      slot = (slot + 1) & (slots - 1)
+      probes += 1
+    }
+    -1
+  }
+
+  /** @return the position of the first empty slot on the probe sequence of the HMAC */
+  private def emptySlot(hmac: Array[Byte], hmacOffset: Int): Int = {
+    var slot = (word(hmac, hmacOffset, 2) & (slots - 1)).toInt
+    while (!isEmpty(tableOffset + slot * SlotBytes))
+      slot = (slot + 1) & (slots - 1)
+    tableOffset + slot * SlotBytes
+  }
+
+  private def isEmpty(position: Int): Boolean = {
+    var i = 0
+    while (i < 4) {
+      val stored: Long = longs.getAcquire(buffer, position + i * 8)
+      if (stored != 0L) return false
+      i += 1
+    }
+    true
+  }
+
+  private def matches(
+      position: Int,
+      hmac: Array[Byte],
+      hmacOffset: Int
+  ): Boolean = {
+    var i = 0
+    while (i < 4) {
+      val stored: Long = longs.getAcquire(buffer, position + i * 8)
+      if (stored != word(hmac, hmacOffset, i)) return false
+      i += 1
+    }
+    true
+  }
+
+}
+
+object RevocationFilter {
+
+  val DefaultCapacity: Int = 65536
+
+  private val Magic = 0x46524e54 // FRNT
+  private val FormatVersion = 1
+  private val HeaderBytes = 64
+  private val CountOffset = 16
+  private val BlockBytes = 64
+  private val SlotBytes = 32
+  private val BitsPerKey = 7
+
+  /** The monitor writers in this JVM hold around the file lock, per real path of a revocation file. */
+  private val writerMonitors = new ConcurrentHashMap[Path, AnyRef]
+
+  private val longs: VarHandle =
+    MethodHandles.byteBufferViewVarHandle(classOf[Array[Long]], ByteOrder.BIG_ENDIAN)
+  private val ints: VarHandle =
+    MethodHandles.byteBufferViewVarHandle(classOf[Array[Int]], ByteOrder.BIG_ENDIAN)
+
+  /** Open the revocation file at <em>path</em> for reading and revoking, creating it if it does not exist or is
+    *  empty. A new file only appears at <em>path</em> once it is fully initialised.
+    *  @param capacity
+    *    the number of revocations a new file has room for, about 66 bytes each. The capacity of an existing file is
+    *    read from it.
+    *  @throws IOException
+    *    if the file cannot be opened or is not a revocation file
+    */
+  def open(path: Path, capacity: Int = DefaultCapacity): RevocationFilter = {
+    if (capacity <= 0)
+      throw new IllegalArgumentException("capacity must be positive")
+    map(path, capacity, writable = true)
+  }
+
+  /** Open an existing revocation file at <em>path</em> for reading only.
+    *  @throws IOException
+    *    if the file cannot be opened or is not a revocation file
+    */
+  def openReadOnly(path: Path): RevocationFilter = map(path, 0, writable = false)
+
+  private def map(
+      path: Path,
+      capacity: Int,
+      writable: Boolean
+  ): RevocationFilter = {
+    if (writable && (!Files.exists(path) || Files.size(path) == 0))
+      create(path, capacity)
+    val channel =
+      if (writable) FileChannel.open(path, READ, WRITE)
+      else FileChannel.open(path, READ)
+    try {
+      if (channel.size < HeaderBytes)
+        throw new IOException("Not a revocation file: " + path)
+      val header = channel.map(MapMode.READ_ONLY, 0, HeaderBytes)
+      if (header.getInt(0) != Magic || header.getInt(4) != FormatVersion)
+        throw new IOException("Not a revocation file: " + path)
+      val blocks = header.getInt(8)
+      val slots = header.getInt(12)
+      val stored = header.getInt(20)
+      val buffer = channel.map(
+        if (writable) MapMode.READ_WRITE else MapMode.READ_ONLY,
+        0,
+        fileSize(blocks, slots)
+      )
+      new RevocationFilter(
+        path,
+        channel,
+        if (writable) writerMonitors.computeIfAbsent(path.toRealPath(), _ => new Object)
+        else null,
+        buffer,
+        stored,
+        blocks,
+        slots,
+        writable
+      )
+    } catch {
+      case e: Throwable =>
+        channel.close()
+        throw e
+    }
+  }
+
+  /** Create the revocation file at <em>path</em>. It is initialised under a temporary name in the same directory and
+    *  only then linked into place, so that a JVM opening the path never sees a file without its header. If another
+    *  JVM creates the file first, its file is kept.
+    */
+  private def create(path: Path, capacity: Int): Unit = {
+    val absolute = path.toAbsolutePath
+    val temporary = Files.createTempFile(
+      absolute.getParent,
+      absolute.getFileName.toString,
+      ".tmp"
+    )
+    try {
+      val channel = FileChannel.open(temporary, READ, WRITE)
+      try initialise(channel, capacity)
+      finally channel.close()
+      try Files.createLink(absolute, temporary)
+      catch {
+        case _: FileAlreadyExistsException =>
+          // an empty file left in place, e.g. by touch, is replaced at once
+          if (Files.size(absolute) == 0)
+            Files.move(temporary, absolute, ATOMIC_MOVE, REPLACE_EXISTING)
+        case _: UnsupportedOperationException =>
+          // no hard links on this file system: a rename is atomic too, but may not fail on an existing file
+          try Files.move(temporary, absolute)
+          catch { case _: FileAlreadyExistsException => }
+      }
+    } finally Files.deleteIfExists(temporary)
+  }
+
+  private def initialise(channel: FileChannel, capacity: Int): Unit = {
+    // about 10 bits per revocation in the filter, and a table at most half full
+    val blocks = powerOfTwoAtLeast((capacity * 10L + 511) / 512)
+    val slots = powerOfTwoAtLeast(capacity * 2L)
+    val size = fileSize(blocks, slots)
+    if (size > Int.MaxValue)
+      throw new IllegalArgumentException("capacity too large: " + capacity)
+    val header = java.nio.ByteBuffer.allocate(HeaderBytes)
+    header.putInt(0, Magic)
+    header.putInt(4, FormatVersion)
+    header.putInt(8, blocks)
+    header.putInt(12, slots)
+    header.putInt(CountOffset, 0)
+    header.putInt(20, capacity)
+    // the bytes after the header read as zero, i.e. no bit set and every slot empty
+    channel.write(java.nio.ByteBuffer.allocate(1), size - 1)
+    channel.write(header, 0)
+    channel.force(true)
+  }
+
+  private def fileSize(blocks: Int, slots: Int): Long =
+    HeaderBytes + blocks.toLong * BlockBytes + slots.toLong * SlotBytes
+
+  private def powerOfTwoAtLeast(n: Long): Int = {
+    if (n > (1 << 30))
+      throw new IllegalArgumentException("capacity too large")
+    math.max(1, Integer.highestOneBit((n - 1).toInt max 0) << 1)
+  }
+
+  /** @return the <em>i</em>th big-endian long of the HMAC */
+  private def word(hmac: Array[Byte], hmacOffset: Int, i: Int): Long =
+    TokenView.readLong(hmac, hmacOffset + i * 8)
+
+}
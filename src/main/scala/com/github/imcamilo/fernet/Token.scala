@@ -1,14 +1,32 @@
 package com.github.imcamilo.fernet
 
 import com.github.imcamilo.exceptions.WHTokenException
-import com.github.imcamilo.validators.Validator
-import org.slf4j.LoggerFactory
+import com.github.imcamilo.metrics.{
+  FernetMetrics,
+  Stage,
+  TokenDecodeEvent,
+  TokenGenerateEvent
+}
+import com.github.imcamilo.validators.{CoarseClock, TokenCheck, Validator}
 
 import java.io._
-import java.security.{MessageDigest, SecureRandom}
+import java.nio.channels.FileChannel.MapMode
+import java.nio.channels.{Channels, FileChannel, ReadableByteChannel}
+import java.nio.charset.StandardCharsets.US_ASCII
+import java.nio.file.Files
+import java.nio.file.StandardOpenOption.{DELETE_ON_CLOSE, READ, WRITE}
+import java.nio.{ByteBuffer, ByteOrder}
+import java.security.SecureRandom
 import java.time.Instant
+import java.util.stream.IntStream
+import javax.crypto.{
+  BadPaddingException,
+  Cipher,
+  IllegalBlockSizeException,
+  ShortBufferException
+}
 import javax.crypto.spec.IvParameterSpec
-import scala.util.{Failure, Success, Try, Using}
+import scala.util.{Failure, Try, Using}
 
 class Token(
     val version: Byte,
@@ -18,8 +36,6 @@ class Token(
     val hmac: Array[Byte]
 ) {
 
-  private val logger = LoggerFactory.getLogger(getClass)
-
   /** Check the validity of this token.
     *  @param key
     *    the secret key against which to validate the token
@@ -31,26 +47,27 @@ class Token(
     *    the decrypted, deserialised payload of this token
     */
   def validateAndDecrypt[A](key: Key, validator: Validator[A]): Option[A] = {
-    validator.validateAndDecrypt(key, this) match {
-      case Failure(exception) =>
-        logger.error(
-          "exception validating and decrypting key - " + exception.getMessage
-        )
+    validator.validate(key, this) match {
+      case Left(reason) =>
+        FailureLog.record("exception validating and decrypting key", reason)
         None
-      case Success(value) =>
+      case Right(value) =>
         Option(value)
     }
   }
 
   def isValidSignature(key: Key): Boolean = {
-    val computedHmac = Key.sign(
+    hmac.length == Constants.signatureBytes && key.context.isValidSignature(
       version,
-      timestamp,
-      initializationVector,
+      timestamp.getEpochSecond,
+      initializationVector.getIV,
+      0,
       cipherText,
-      key.signingKey
+      0,
+      cipherText.length,
+      hmac,
+      0
     )
-    MessageDigest.isEqual(hmac, computedHmac)
   }
 
   def validateAndDecrypt(
@@ -69,7 +86,59 @@ class Token(
     } else if (!isValidSignature(key)) {
       throw new WHTokenException("Signature does not match.");
     }
-    Key.decrypt(cipherText, initializationVector, key.encryptionKey)
+    key.context.decrypt(cipherText, initializationVector)
+  }
+
+  /** Check the validity of this token against a window given in whole seconds since the epoch, then decrypt it.
+    *  @param earliestValidEpochSecond
+    *    the latest timestamp of a token that is expired
+    *  @param latestValidEpochSecond
+    *    the earliest timestamp of a token that is too far in the future
+    *  @return
+    *    the decrypted payload of this token
+    */
+  def validateAndDecrypt(
+      key: Key,
+      earliestValidEpochSecond: Long,
+      latestValidEpochSecond: Long
+  ): Array[Byte] =
+    decryptIfValid(key, earliestValidEpochSecond, latestValidEpochSecond) match {
+      case Right(plainText) => plainText
+      case Left(reason)     => throw reason.toException
+    }
+
+  /** Check the validity of this token against a window given in whole seconds since the epoch, then decrypt it,
+    *  without throwing or capturing a stack trace when the token is rejected.
+    *  @param earliestValidEpochSecond
+    *    the latest timestamp of a token that is expired
+    *  @param latestValidEpochSecond
+    *    the earliest timestamp of a token that is too far in the future
+    *  @param check
+    *    a check run once the signature is verified and before decryption, or null
+    *  @return
+    *    the decrypted payload of this token, or the reason it was rejected
+    */
+  def decryptIfValid(
+      key: Key,
+      earliestValidEpochSecond: Long,
+      latestValidEpochSecond: Long,
+      check: TokenCheck = null
+  ): Either[FailureReason, Array[Byte]] = {
+    val seconds = timestamp.getEpochSecond
+    val rejected = Token.checkWindow(
+      version,
+      seconds,
+      earliestValidEpochSecond,
+      latestValidEpochSecond
+    )
+    if (rejected != null) Left(rejected)
+    else if (!isValidSignature(key)) Left(FailureReason.SignatureMismatch)
+    else
+      Token.decryptChecked(check, hmac, 0, seconds) {
+        Token.badPaddingIfNull(
+          key.context.decryptOrNull(initializationVector, cipherText, 0, cipherText.length)
+        )
+      }
   }
 }
 
@@ -77,7 +146,15 @@ object Token {
 
   import Constants._
 
-  private val logger = LoggerFactory.getLogger(getClass)
+  /** The batch size from which [[generateBatch]] splits the work across threads, and the size of each split. */
+  private val batchParallelThreshold = 256
+  private val batchChunkSize = 64
+
+  /** The size of the chunks a streamed payload is read and encrypted in. */
+  private val streamChunkBytes = 8192
+
+  /** The size of the regions of a spooled cipher text mapped at once, a multiple of the block size. */
+  private val spoolWindowBytes = 1L << 26
 
   /** Convenience method to generate a new Fernet token with a string payload.
     *
@@ -89,9 +166,26 @@ object Token {
     *    a unique Fernet token
     */
   def generate(key: Key, plainText: String): Token = {
-    generate(new SecureRandom, key, plainText)
+    generate(key, plainText.getBytes(charset))
   }
 
+  /** Generate a new Fernet token, drawing the initialization vector from [[InitializationVectorSource.shared]].
+    *  @param key
+    *    the secret key for encrypting payload and signing the token
+    *  @param payload
+    *    the unencrypted data to embed in the token
+    *  @return
+    *    a unique Fernet token
+    */
+  def generate(key: Key, payload: Array[Byte]): Token =
+    generate(
+      key,
+      new IvParameterSpec(
+        generateInitializationVectorBytes(InitializationVectorSource.shared)
+      ),
+      payload
+    )
+
   /** Convenience method to generate a new Fernet token with a string payload.
     *  @param random
     *    a source of entropy for your application
@@ -116,39 +210,476 @@ object Token {
     *  @return
     *    a unique Fernet token
     */
-  def generate(random: SecureRandom, key: Key, payload: Array[Byte]): Token = {
-    val initializationVector = generateInitializationVector(random)
-    val cipherText =
-      Key.encrypt(payload, initializationVector, key.encryptionKey)
-    val timestamp = Instant.now
-    val hmac = Key.sign(
+  def generate(random: SecureRandom, key: Key, payload: Array[Byte]): Token =
+    generate(key, generateInitializationVector(random), payload)
+
+  private def generate(
+      key: Key,
+      initializationVector: IvParameterSpec,
+      payload: Array[Byte]
+  ): Token = {
+    val event = new TokenGenerateEvent
+    event.begin()
+    val metrics = FernetMetrics.get
+    val started = metrics.start()
+    val context = key.context
+    val cipherText = context.encrypt(payload, initializationVector)
+    val timestamp = Instant.ofEpochSecond(CoarseClock.currentEpochSecond)
+    val hmac =
+      context.sign(supportedVersion, timestamp, initializationVector, cipherText)
+    val token = Token.initializeToken(
       supportedVersion,
       timestamp,
       initializationVector,
       cipherText,
-      key.signingKey
+      hmac
+    )
+    metrics.stop(Stage.Generate, started)
+    event.end()
+    if (event.shouldCommit) {
+      event.payloadSize = payload.length
+      event.commit()
+    }
+    token
+  }
+
+  /** Generate a new Fernet token straight into its serialised form, drawing the initialization vector from
+    *  [[InitializationVectorSource.shared]]. See the overload taking a SecureRandom.
+    */
+  def generateEncoded(key: Key, payload: Array[Byte]): Array[Byte] =
+    generateEncoded(
+      key,
+      generateInitializationVectorBytes(InitializationVectorSource.shared),
+      payload
+    )
+
+  /** Generate a new Fernet token straight into its serialised form, the ASCII bytes of
+    *  <em>serialise(generate(random, key, payload))</em>. The payload is encrypted into the array returned, right after
+    *  the header, the HMAC is computed over that same region and appended, and the token is then Base 64 URL encoded
+    *  in place, so the payload is copied once instead of four times.
+    *  @param random
+    *    a source of entropy for your application
+    *  @param key
+    *    the secret key for encrypting payload and signing the token
+    *  @param payload
+    *    the unencrypted data to embed in the token
+    *  @return
+    *    the Base 64 URL encoding of a unique Fernet token, in ASCII
+    */
+  def generateEncoded(
+      random: SecureRandom,
+      key: Key,
+      payload: Array[Byte]
+  ): Array[Byte] =
+    generateEncoded(key, generateInitializationVectorBytes(random), payload)
+
+  /** Generate a new Fernet token with a string payload straight into its serialised form, see [[generateEncoded]]. */
+  def generateString(key: Key, plainText: String): String =
+    new String(generateEncoded(key, plainText.getBytes(charset)), US_ASCII)
+
+  /** Generate a new Fernet token with a string payload straight into its serialised form, see [[generateEncoded]]. */
+  def generateString(
+      random: SecureRandom,
+      key: Key,
+      plainText: String
+  ): String =
+    new String(
+      generateEncoded(random, key, plainText.getBytes(charset)),
+      US_ASCII
+    )
+
+  private def generateEncoded(
+      key: Key,
+      initializationVector: Array[Byte],
+      payload: Array[Byte]
+  ): Array[Byte] = {
+    val event = new TokenGenerateEvent
+    event.begin()
+    val metrics = FernetMetrics.get
+    val started = metrics.start()
+    val output =
+      new Array[Byte](encodedLength(payload.length))
+    writeEncoded(
+      key.context,
+      CoarseClock.currentEpochSecond,
+      initializationVector,
+      0,
+      payload,
+      output,
+      0
+    )
+    metrics.stop(Stage.Generate, started)
+    event.end()
+    if (event.shouldCommit) {
+      event.payloadSize = payload.length
+      event.commit()
+    }
+    output
+  }
+
+  /** Write a token and encode it in place: the header, the cipher text and the HMAC are laid out at
+    *  <em>outputOffset</em>, then Base 64 URL encoded over themselves from the last group.
+    *  @param output
+    *    the array receiving the encoded token at <em>outputOffset</em>. It must have room for
+    *    <em>encodedLength(payload.length)</em> bytes.
+    *  @return
+    *    the number of bytes written to <em>output</em>
+    */
+  private def writeEncoded(
+      context: KeyContext,
+      timestampSeconds: Long,
+      initializationVector: Array[Byte],
+      initializationVectorOffset: Int,
+      payload: Array[Byte],
+      output: Array[Byte],
+      outputOffset: Int
+  ): Int = {
+    val ivOffset = outputOffset + versionBytes + timestampBytes
+    val cipherTextOffset = outputOffset + tokenPrefixBytes
+    output(outputOffset) = supportedVersion
+    TokenView.writeLong(output, outputOffset + versionBytes, timestampSeconds)
+    System.arraycopy(
+      initializationVector,
+      initializationVectorOffset,
+      output,
+      ivOffset,
+      initializationVectorBytes
     )
-    Token.initializeToken(
+    val cipherTextLength = context.encrypt(
+      payload,
+      0,
+      payload.length,
+      output,
+      ivOffset,
+      output,
+      cipherTextOffset
+    )
+    context.sign(
       supportedVersion,
-      timestamp,
+      timestampSeconds,
+      output,
+      ivOffset,
+      output,
+      cipherTextOffset,
+      cipherTextLength,
+      output,
+      cipherTextOffset + cipherTextLength
+    )
+    Base64Url.encode(
+      output,
+      outputOffset,
+      tokenStaticBytes + cipherTextLength,
+      output,
+      outputOffset
+    )
+  }
+
+  /** Generate a new Fernet token from a (possibly direct) buffer straight into another one. The payload is encrypted
+    *  into the output buffer and signed there, so neither buffer is copied to the heap.
+    *  @param random
+    *    a source of entropy for your application
+    *  @param key
+    *    the secret key for encrypting payload and signing the token
+    *  @param payload
+    *    the unencrypted data to embed in the token, from its position to its limit. The position advances to the limit.
+    *  @param output
+    *    the buffer receiving the token in the form Version | Timestamp | IV | Ciphertext | HMAC at its position, which
+    *    advances past it
+    *  @return
+    *    the number of bytes written to <em>output</em>
+    */
+  def generate(
+      random: SecureRandom,
+      key: Key,
+      payload: ByteBuffer,
+      output: ByteBuffer
+  ): Int = {
+    val required = tokenLength(payload.remaining)
+    if (output.remaining < required)
+      throw new IllegalArgumentException(
+        "Output buffer too small for a token of " + required + " bytes"
+      )
+    val event = new TokenGenerateEvent
+    event.begin()
+    val payloadSize = payload.remaining
+    val metrics = FernetMetrics.get
+    val started = metrics.start()
+    val initializationVector = generateInitializationVectorBytes(random)
+    val context = key.context
+    val start = output.position()
+    output.put(supportedVersion)
+    putTimestamp(output, CoarseClock.currentEpochSecond)
+    output.put(initializationVector)
+    context.encrypt(payload, new IvParameterSpec(initializationVector), output)
+    val signedBytes = output.duplicate
+    signedBytes.flip().position(start)
+    val hmac = new Array[Byte](signatureBytes)
+    context.sign(signedBytes, hmac, 0)
+    output.put(hmac)
+    metrics.stop(Stage.Generate, started)
+    event.end()
+    if (event.shouldCommit) {
+      event.payloadSize = payloadSize
+      event.commit()
+    }
+    output.position() - start
+  }
+
+  /** Generate a Fernet token from a payload read from a stream, writing its Base 64 URL encoding to another stream as
+    *  it goes, drawing the initialization vector from [[InitializationVectorSource.shared]]. See the overload taking
+    *  a SecureRandom.
+    */
+  def generate(key: Key, input: InputStream, output: OutputStream): Long =
+    generate(
+      key,
+      InitializationVectorSource.shared.next(),
+      input,
+      output
+    )
+
+  /** Generate a Fernet token from a payload of any size read from a stream, writing its Base 64 URL encoding to
+    *  another stream as it goes. The payload is encrypted and signed chunk by chunk with <em>Cipher.update</em> and
+    *  <em>Mac.update</em>, so the memory used does not depend on its size. The token is laid out exactly as the ones
+    *  generated from an array, and can be verified by any Fernet implementation.
+    *  @param input
+    *    the payload, read until the end of the stream. It is not closed.
+    *  @param output
+    *    the stream receiving the Base 64 URL encoding of the token. It is not closed.
+    *  @return
+    *    the number of characters written to <em>output</em>
+    */
+  def generate(
+      random: SecureRandom,
+      key: Key,
+      input: InputStream,
+      output: OutputStream
+  ): Long =
+    generate(key, generateInitializationVectorBytes(random), input, output)
+
+  /** Generate a Fernet token from a payload read from a channel, see the InputStream overload. */
+  def generate(
+      random: SecureRandom,
+      key: Key,
+      input: ReadableByteChannel,
+      output: OutputStream
+  ): Long =
+    generate(random, key, Channels.newInputStream(input), output)
+
+  private def generate(
+      key: Key,
+      initializationVector: Array[Byte],
+      input: InputStream,
+      output: OutputStream
+  ): Long = {
+    val context = key.context
+    val cipher = context.cipher
+    val mac = context.mac
+    try
+      cipher.init(
+        Cipher.ENCRYPT_MODE,
+        context.encryptionKeySpec,
+        new IvParameterSpec(initializationVector)
+      )
+    catch Key.encryptionFailure(context.encryptionKeySpec)
+    val encoded = encoder.wrap(new RetainedOutputStream(output))
+    val header = new Array[Byte](tokenPrefixBytes)
+    header(0) = supportedVersion
+    TokenView.writeLong(header, versionBytes, CoarseClock.currentEpochSecond)
+    System.arraycopy(
       initializationVector,
-      cipherText,
-      hmac
+      0,
+      header,
+      versionBytes + timestampBytes,
+      initializationVectorBytes
     )
+    var tokenLength = tokenStaticBytes.toLong
+    // leaves the thread's Mac clean if reading or writing fails midway
+    try {
+      mac.update(header)
+      encoded.write(header)
+      val chunk = new Array[Byte](streamChunkBytes)
+      val cipherText = new Array[Byte](streamChunkBytes + cipherTextBlockSize)
+      try {
+        var read = input.read(chunk)
+        while (read >= 0) {
+          val encrypted = cipher.update(chunk, 0, read, cipherText)
+          mac.update(cipherText, 0, encrypted)
+          encoded.write(cipherText, 0, encrypted)
+          tokenLength += encrypted
+          read = input.read(chunk)
+        }
+        val encrypted = cipher.doFinal(cipherText, 0)
+        mac.update(cipherText, 0, encrypted)
+        encoded.write(cipherText, 0, encrypted)
+        tokenLength += encrypted
+      } catch Key.encryptionFailure(context.encryptionKeySpec)
+      encoded.write(mac.doFinal())
+    } finally mac.reset()
+    // writes the final padded quantum, and leaves output open
+    encoded.close()
+    (tokenLength + 2) / 3 * 4
+  }
+
+  /** Lets the encoder wrapping a stream flush its last quantum on close without closing the stream. */
+  private final class RetainedOutputStream(out: OutputStream)
+      extends FilterOutputStream(out) {
+    override def write(b: Array[Byte], off: Int, len: Int): Unit =
+      out.write(b, off, len)
+    override def close(): Unit = flush()
   }
 
+  /** Generate a Fernet token for each payload of a batch, serialised one after the other into a single array. The
+    *  batch shares one timestamp and one set of crypto primitives, and all the initialization vectors are drawn with a
+    *  single call to the source of entropy. Large batches are split across the common ForkJoin pool.
+    *  @param key
+    *    the secret key for encrypting the payloads and signing the tokens
+    *  @param payloads
+    *    the unencrypted data to embed in each token
+    *  @return
+    *    the serialised tokens, in the order of the payloads
+    */
+  def generateBatch(key: Key, payloads: IndexedSeq[Array[Byte]]): TokenBatch =
+    generateBatch(
+      InitializationVectorSource.shared.nextBytes(_, 0, _),
+      key,
+      payloads
+    )
+
+  /** Generate a Fernet token for each payload of a batch, like the overload drawing from the shared
+    *  [[InitializationVectorSource]].
+    *  @param random
+    *    a source of entropy for your application
+    */
+  def generateBatch(
+      random: SecureRandom,
+      key: Key,
+      payloads: IndexedSeq[Array[Byte]]
+  ): TokenBatch =
+    generateBatch((bytes, _) => random.nextBytes(bytes), key, payloads)
+
+  private def generateBatch(
+      nextBytes: (Array[Byte], Int) => Unit,
+      key: Key,
+      payloads: IndexedSeq[Array[Byte]]
+  ): TokenBatch = {
+    val count = payloads.length
+    val offsets = new Array[Int](count + 1)
+    var total = 0L
+    var i = 0
+    while (i < count) {
+      total += encodedLength(payloads(i).length)
+      if (total > Int.MaxValue)
+        throw new IllegalArgumentException(
+          "Batch too large to be serialised into a single array"
+        )
+      offsets(i + 1) = total.toInt
+      i += 1
+    }
+    val initializationVectors = new Array[Byte](count * initializationVectorBytes)
+    nextBytes(initializationVectors, initializationVectors.length)
+    val timestamp = CoarseClock.currentEpochSecond
+    val output = new Array[Byte](total.toInt)
+    val context = key.context
+
+    val metrics = FernetMetrics.get
+
+    def generateRange(from: Int, until: Int): Unit = {
+      var t = from
+      while (t < until) {
+        val started = metrics.start()
+        writeEncoded(
+          context,
+          timestamp,
+          initializationVectors,
+          t * initializationVectorBytes,
+          payloads(t),
+          output,
+          offsets(t)
+        )
+        metrics.stop(Stage.Generate, started)
+        t += 1
+      }
+    }
+
+    if (count < batchParallelThreshold) generateRange(0, count)
+    else {
+      val chunks = (count + batchChunkSize - 1) / batchChunkSize
+      IntStream
+        .range(0, chunks)
+        .parallel()
+        .forEach { chunk =>
+          val from = chunk * batchChunkSize
+          generateRange(from, math.min(count, from + batchChunkSize))
+        }
+    }
+    new TokenBatch(output, offsets)
+  }
+
+  /** @return the length in bytes of a token carrying a payload of <em>payloadLength</em> bytes, before encoding */
+  def tokenLength(payloadLength: Int): Int =
+    tokenStaticBytes + (payloadLength / cipherTextBlockSize + 1) * cipherTextBlockSize
+
+  /** @return the exact length of the Base 64 URL encoding of a token carrying <em>payloadLength</em> bytes */
+  def encodedLength(payloadLength: Int): Int =
+    Base64Url.encodedLength(tokenLength(payloadLength))
+
+  /** @return the exact length of the Base 64 URL encoding of <em>token</em>, i.e. of <em>serialise(token)</em> */
+  def encodedLength(token: Token): Int =
+    Base64Url.encodedLength(tokenStaticBytes + token.cipherText.length)
+
   def serialise(breadcrumbToken: Token): String = {
-    Using(
-      new ByteArrayOutputStream(
-        tokenStaticBytes + breadcrumbToken.cipherText.length
+    val bytes = new Array[Byte](encodedLength(breadcrumbToken))
+    encodeInto(breadcrumbToken, bytes, 0)
+    new String(bytes, US_ASCII)
+  }
+
+  /** Serialise a token as Base 64 URL ASCII bytes into an array, e.g. straight into the buffer of an HTTP header,
+    *  without going through a String. The token is laid out in the destination and then encoded in place.
+    *  @param output
+    *    the array receiving the encoding at <em>offset</em>. It must have room for <em>encodedLength(token)</em> bytes.
+    *  @return
+    *    the number of bytes written to <em>output</em>
+    */
+  def encodeInto(token: Token, output: Array[Byte], offset: Int): Int = {
+    val required = encodedLength(token)
+    if (offset < 0 || output.length - offset < required)
+      throw new IllegalArgumentException(
+        "Output array too small for a token of " + required + " bytes"
       )
-    ) { byteStream =>
-      writeTo(byteStream, breadcrumbToken)
-      return encoder.encodeToString(byteStream.toByteArray)
-    }.recover {
-      case e =>
-        throw new IllegalStateException(e.getMessage, e)
-    }.get
+    writeTo(ByteBuffer.wrap(output, offset, required), token)
+    Base64Url.encode(
+      output,
+      offset,
+      tokenStaticBytes + token.cipherText.length,
+      output,
+      offset
+    )
+  }
+
+  /** Serialise a token as Base 64 URL ASCII bytes into a (possibly direct) buffer, see the array overload.
+    *  @param output
+    *    the buffer receiving the encoding at its position, which advances past it. It must have
+    *    <em>encodedLength(token)</em> bytes remaining.
+    *  @return
+    *    the number of bytes written to <em>output</em>
+    */
+  def encodeInto(token: Token, output: ByteBuffer): Int = {
+    val required = encodedLength(token)
+    if (output.remaining < required)
+      throw new IllegalArgumentException(
+        "Output buffer too small for a token of " + required + " bytes"
+      )
+    val written =
+      if (output.hasArray)
+        encodeInto(token, output.array, output.arrayOffset + output.position())
+      else {
+        // a direct buffer cannot be encoded in place, lay the token out on the heap first
+        val bytes = new Array[Byte](tokenStaticBytes + token.cipherText.length)
+        writeTo(ByteBuffer.wrap(bytes), token)
+        Base64Url.encode(bytes, 0, bytes.length, output)
+      }
+    output.position(output.position() + written)
+    written
   }
 
   def writeTo(outputStream: OutputStream, breadcrumbToken: Token): Try[Unit] = {
@@ -161,6 +692,26 @@ object Token {
     }
   }
 
+  /** Write a token to a (possibly direct) buffer in the form Version | Timestamp | IV | Ciphertext | HMAC.
+    *  @param buffer
+    *    the buffer receiving the token at its position, which advances past it
+    */
+  def writeTo(buffer: ByteBuffer, breadcrumbToken: Token): Unit = {
+    buffer.put(breadcrumbToken.version)
+    putTimestamp(buffer, breadcrumbToken.timestamp.getEpochSecond)
+    buffer
+      .put(breadcrumbToken.initializationVector.getIV)
+      .put(breadcrumbToken.cipherText)
+      .put(breadcrumbToken.hmac)
+  }
+
+  /** Fernet timestamps are big-endian, whatever the byte order of the buffer. */
+  private def putTimestamp(buffer: ByteBuffer, timestampSeconds: Long): Unit =
+    buffer.putLong(
+      if (buffer.order eq ByteOrder.BIG_ENDIAN) timestampSeconds
+      else java.lang.Long.reverseBytes(timestampSeconds)
+    )
+
   protected def generateInitializationVector(
       random: SecureRandom
   ): IvParameterSpec = {
@@ -175,13 +726,9 @@ object Token {
     retval
   }
 
-  protected def read(stream: DataInputStream, numBytes: Int): Array[Byte] = {
-    val retval = new Array[Byte](numBytes)
-    val bytesRead = stream.read(retval)
-    if (bytesRead < numBytes)
-      throw new WHTokenException("Not enough bits to generate a Token")
-    retval
-  }
+  protected def generateInitializationVectorBytes(
+      source: InitializationVectorSource
+  ): Array[Byte] = source.next()
 
   /** Deserialise a Base64 URL Fernet token string. This does NOT validate that the token was generated using a valid
     *  Key.
@@ -191,50 +738,597 @@ object Token {
     *    a new WHToken
     */
   def fromString(string: String): Option[Token] = {
-    fromBytes(decoder.decode(string)) match {
-      case Failure(exception) =>
-        logger.error("exception decoding from bytes - " + exception.getMessage)
+    val event = new TokenDecodeEvent
+    event.begin()
+    val metrics = FernetMetrics.get
+    val started = metrics.start()
+    val bytes =
+      try decoder.decode(string)
+      catch {
+        case _: IllegalArgumentException => Array.emptyByteArray
+      }
+    val read = TokenView.read(bytes, 0, bytes.length)
+    metrics.stop(Stage.Decode, started)
+    event.end()
+    if (event.shouldCommit) {
+      event.tokenLength = bytes.length
+      event.valid = read.isRight
+      event.failureReason = read.left.toOption.map(_.toString).orNull
+      event.commit()
+    }
+    read match {
+      case Left(reason) =>
+        FailureLog.record("exception decoding from bytes", reason)
         None
-      case Success(value) =>
-        Option(value)
+      case Right(view) =>
+        Option(view.toToken)
     }
   }
 
-  /** Read a Token from bytes. This does NOT validate that the token was generated using a valid Key.
+  /** Decode, verify and decrypt a Base64 URL Fernet token string in one pass over the decoded bytes, without
+    *  materialising a Token or throwing on a rejected token.
+    *  @param string
+    *    the Base 64 URL encoding of a token in the form Version | Timestamp | IV | Ciphertext | HMAC
+    *  @param key
+    *    the secret key against which to validate the token
+    *  @param validator
+    *    an object that encapsulates the validation parameters (e.g. TTL)
+    *  @tparam A
+    *    type of the validator
+    *  @return
+    *    the decrypted, deserialised payload of the token, or the reason it was rejected
+    */
+  def validateAndDecrypt[A](
+      string: String,
+      key: Key,
+      validator: Validator[A]
+  ): Either[FailureReason, A] = {
+    val bytes =
+      try decoder.decode(string)
+      catch {
+        case _: IllegalArgumentException => return Left(FailureReason.Malformed)
+      }
+    validateAndDecrypt(bytes, 0, bytes.length, key, validator)
+  }
+
+  /** Verify and decrypt a token held in a slice of an array, like the String overload does once it has decoded it.
     *  @param bytes
-    *    a Fernet token in the form Version | Timestamp | IV | Ciphertext | HMAC
+    *    an array holding a Fernet token in the form Version | Timestamp | IV | Ciphertext | HMAC at <em>offset</em>
+    *  @param length
+    *    the length of the token
     *  @return
-    *    a new WHToken
+    *    the decrypted, deserialised payload of the token, or the reason it was rejected
+    */
+  def validateAndDecrypt[A](
+      bytes: Array[Byte],
+      offset: Int,
+      length: Int,
+      key: Key,
+      validator: Validator[A]
+  ): Either[FailureReason, A] = {
+    val rejected = checkHeader(bytes, offset, length, validator)
+    val result =
+      if (rejected != null) Left(rejected)
+      else if (!isValidSignature(bytes, offset, length, key))
+        Left(FailureReason.SignatureMismatch)
+      else decryptVerified(bytes, offset, length, key, validator)
+    FernetMetrics.get.recordOutcome(result)
+    result
+  }
+
+  /** Decode, verify and decrypt a Base64 URL Fernet token string, decrypting the payload in place in the array the
+    *  token is decoded into, see the overload taking a slice of an array.
+    *  @return
+    *    the decrypted payload of the token, to close once read, or the reason it was rejected
     */
-  def fromBytes(bytes: Array[Byte]): Try[Token] = {
-
-    if (bytes.length < minimumTokenBytes)
-      throw new WHTokenException("Not enough bits to generate a Token")
-
-    val response = Using(new ByteArrayInputStream(bytes)) { inputStream =>
-      Using(new DataInputStream(inputStream)) { dataStream =>
-        val version = dataStream.readByte
-        val timestampSeconds = dataStream.readLong
-        val initializationVector = read(dataStream, initializationVectorBytes)
-        val cipherText = read(dataStream, bytes.length - tokenStaticBytes)
-        val hmac = read(dataStream, signatureBytes)
-        if (dataStream.read() != -1)
-          throw new WHTokenException("more bits found")
-        Token.initializeToken(
-          version,
-          Instant.ofEpochSecond(timestampSeconds),
-          new IvParameterSpec(initializationVector),
-          cipherText,
-          hmac
+  def decryptInPlace(
+      string: String,
+      key: Key,
+      validator: Validator[_]
+  ): Either[FailureReason, PlainText] = {
+    val bytes =
+      try decoder.decode(string)
+      catch {
+        case _: IllegalArgumentException => return Left(FailureReason.Malformed)
+      }
+    decryptInPlace(bytes, 0, bytes.length, key, validator)
+  }
+
+  /** Verify a token held in a slice of an array, then decrypt its payload over its cipher text, so that the only
+    *  payload-sized array is the one holding the token. Only the validation parameters of the validator are used: the
+    *  payload is left as bytes, neither transformed nor checked by the object validator. The cipher text is lost once
+    *  the signature is verified, whatever the outcome of the decryption.
+    *  @param bytes
+    *    an array holding a Fernet token in the form Version | Timestamp | IV | Ciphertext | HMAC at <em>offset</em>
+    *  @param length
+    *    the length of the token
+    *  @return
+    *    a view of the decrypted payload within <em>bytes</em>, whose closing zeroes the token, or the reason the token
+    *    was rejected
+    */
+  def decryptInPlace(
+      bytes: Array[Byte],
+      offset: Int,
+      length: Int,
+      key: Key,
+      validator: Validator[_]
+  ): Either[FailureReason, PlainText] = {
+    val result = decryptSliceInPlace(bytes, offset, length, key, validator)
+    FernetMetrics.get.recordOutcome(result)
+    result
+  }
+
+  private def decryptSliceInPlace(
+      bytes: Array[Byte],
+      offset: Int,
+      length: Int,
+      key: Key,
+      validator: Validator[_]
+  ): Either[FailureReason, PlainText] = {
+    val rejected = checkHeader(bytes, offset, length, validator)
+    if (rejected != null) return Left(rejected)
+    if (!isValidSignature(bytes, offset, length, key))
+      return Left(FailureReason.SignatureMismatch)
+    decryptChecked(bytes, offset, length, validator.tokenCheck) {
+      val cipherTextOffset = offset + tokenPrefixBytes
+      val decrypted = key.context.decryptInPlace(
+        initializationVector(bytes, offset),
+        bytes,
+        cipherTextOffset,
+        length - tokenStaticBytes
+      )
+      if (decrypted < 0) Left(FailureReason.BadPadding)
+      else
+        Right(new PlainText(bytes, cipherTextOffset, decrypted, offset, length))
+    }
+  }
+
+  /** Check everything but the signature of a token held in a slice of an array: its layout, its version and its
+    *  timestamp against the validity window of the validator.
+    *  @return
+    *    the reason the token is rejected, or null if the signature is worth checking
+    */
+  private[fernet] def checkHeader(
+      bytes: Array[Byte],
+      offset: Int,
+      length: Int,
+      validator: Validator[_]
+  ): FailureReason =
+    if (
+      length < minimumTokenBytes || (length - tokenStaticBytes) % cipherTextBlockSize != 0
+    ) FailureReason.Malformed
+    else if (bytes(offset) != supportedVersion) FailureReason.BadVersion
+    else
+      checkTimestamp(TokenView.readLong(bytes, offset + versionBytes), validator)
+
+  /** @return true if the token held in a slice of an array, of valid layout, was signed with the key */
+  private[fernet] def isValidSignature(
+      bytes: Array[Byte],
+      offset: Int,
+      length: Int,
+      key: Key
+  ): Boolean =
+    key.context.isValidSignature(
+      bytes(offset),
+      TokenView.readLong(bytes, offset + versionBytes),
+      bytes,
+      offset + versionBytes + timestampBytes,
+      bytes,
+      offset + tokenPrefixBytes,
+      length - tokenStaticBytes,
+      bytes,
+      offset + length - signatureBytes
+    )
+
+  /** Decrypt and deserialise a token held in a slice of an array, once its header and its signature are checked. */
+  private[fernet] def decryptVerified[A](
+      bytes: Array[Byte],
+      offset: Int,
+      length: Int,
+      key: Key,
+      validator: Validator[A]
+  ): Either[FailureReason, A] =
+    decryptVerified(bytes, offset, length, key, validator.tokenCheck) match {
+      case Right(plainText) => validator.deserialise(plainText)
+      case Left(reason)     => Left(reason)
+    }
+
+  /** Decrypt a token held in a slice of an array, once its header and its signature are checked, leaving the payload
+    *  as bytes.
+    *  @param check
+    *    the checks of the validator, or null
+    */
+  private[fernet] def decryptVerified(
+      bytes: Array[Byte],
+      offset: Int,
+      length: Int,
+      key: Key,
+      check: TokenCheck
+  ): Either[FailureReason, Array[Byte]] =
+    decryptChecked(bytes, offset, length, check) {
+      badPaddingIfNull(
+        key.context.decryptOrNull(
+          initializationVector(bytes, offset),
+          bytes,
+          offset + tokenPrefixBytes,
+          length - tokenStaticBytes
         )
+      )
+    }
+
+  /** Run the checks of a validator on a token held in a slice of an array, then decrypt it, see the overload taking
+    *  the HMAC.
+    */
+  private def decryptChecked[R](
+      bytes: Array[Byte],
+      offset: Int,
+      length: Int,
+      check: TokenCheck
+  )(decrypt: => Either[FailureReason, R]): Either[FailureReason, R] =
+    decryptChecked(
+      check,
+      bytes,
+      offset + length - signatureBytes,
+      TokenView.readLong(bytes, offset + versionBytes)
+    )(decrypt)
+
+  /** The single step from a verified signature to the payload, which every entry point takes so that no check can be
+    *  left out of one of them: run the checks of the validator on the token, then decrypt it.
+    *  @param check
+    *    the checks of the validator, or null
+    *  @param hmac
+    *    an array holding the verified HMAC of the token at <em>hmacOffset</em>
+    *  @param decrypt
+    *    the decryption of the token, only run if it passes the checks
+    *  @return
+    *    the decrypted payload, or the reason the token was rejected
+    */
+  private[fernet] def decryptChecked[R](
+      check: TokenCheck,
+      hmac: Array[Byte],
+      hmacOffset: Int,
+      timestampSeconds: Long
+  )(decrypt: => Either[FailureReason, R]): Either[FailureReason, R] = {
+    val rejected =
+      if (check == null) null else check.check(hmac, hmacOffset, timestampSeconds)
+    if (rejected != null) Left(rejected) else decrypt
+  }
+
+  /** @return the reason a token of this version and timestamp is rejected by a validity window, or null if it is not */
+  private[fernet] def checkWindow(
+      version: Byte,
+      timestampSeconds: Long,
+      earliestValidEpochSecond: Long,
+      latestValidEpochSecond: Long
+  ): FailureReason =
+    if (version != supportedVersion) FailureReason.BadVersion
+    else if (timestampSeconds <= earliestValidEpochSecond) FailureReason.Expired
+    else if (timestampSeconds >= latestValidEpochSecond) FailureReason.FutureTimestamp
+    else null
+
+  /** @return the initialisation vector of a token held in a slice of an array, without copying it */
+  private def initializationVector(bytes: Array[Byte], offset: Int): IvParameterSpec =
+    new IvParameterSpec(
+      bytes,
+      offset + versionBytes + timestampBytes,
+      initializationVectorBytes
+    )
+
+  private def badPaddingIfNull(
+      plainText: Array[Byte]
+  ): Either[FailureReason, Array[Byte]] =
+    if (plainText == null) Left(FailureReason.BadPadding) else Right(plainText)
+
+  /** Verify and decrypt a token held in a (possibly direct) buffer straight into another one, without copying the
+    *  cipher text or the payload to the heap. Only the validation parameters of the validator are used: the payload
+    *  is left as bytes in <em>output</em>, neither transformed nor checked by the object validator.
+    *  @param token
+    *    a Fernet token in the form Version | Timestamp | IV | Ciphertext | HMAC, from its position to its limit. The
+    *    position is left untouched.
+    *  @param key
+    *    the secret key against which to validate the token
+    *  @param validator
+    *    an object that encapsulates the validation parameters (e.g. TTL)
+    *  @param output
+    *    the buffer receiving the decrypted payload at its position, which advances past it. It must have room for as
+    *    many bytes as the cipher text.
+    *  @return
+    *    the length of the decrypted payload, or the reason the token was rejected
+    */
+  def validateAndDecrypt(
+      token: ByteBuffer,
+      key: Key,
+      validator: Validator[_],
+      output: ByteBuffer
+  ): Either[FailureReason, Int] = {
+    val result = decryptInto(token, key, validator, output)
+    FernetMetrics.get.recordOutcome(result)
+    result
+  }
+
+  private def decryptInto(
+      token: ByteBuffer,
+      key: Key,
+      validator: Validator[_],
+      output: ByteBuffer
+  ): Either[FailureReason, Int] = {
+    val start = token.position()
+    val length = token.remaining
+    if (
+      length < minimumTokenBytes || (length - tokenStaticBytes) % cipherTextBlockSize != 0
+    ) return Left(FailureReason.Malformed)
+    if (token.get(start) != supportedVersion)
+      return Left(FailureReason.BadVersion)
+    val outsideWindow =
+      checkTimestamp(TokenView.readLong(token, start + versionBytes), validator)
+    if (outsideWindow != null) return Left(outsideWindow)
+    val context = key.context
+    if (!context.isValidSignature(token)) return Left(FailureReason.SignatureMismatch)
+    val check = validator.tokenCheck
+    val hmac =
+      if (check == null) null
+      else {
+        val copy = new Array[Byte](signatureBytes)
+        token.duplicate.position(start + length - signatureBytes).get(copy)
+        copy
       }
+    decryptChecked(check, hmac, 0, TokenView.readLong(token, start + versionBytes)) {
+      val initializationVector = new Array[Byte](initializationVectorBytes)
+      val fields = token.duplicate
+      fields.position(start + versionBytes + timestampBytes)
+      fields.get(initializationVector)
+      fields.limit(start + length - signatureBytes)
+      val decrypted = context.decryptOrFailure(
+        fields,
+        new IvParameterSpec(initializationVector),
+        output
+      )
+      if (decrypted < 0) Left(FailureReason.BadPadding) else Right(decrypted)
     }
+  }
+
+  /** Verify and decrypt a token of any size read as Base 64 URL from a stream, writing the payload to another stream,
+    *  with a memory use that does not depend on the size of the token. The first pass decodes the token, computes its
+    *  HMAC with <em>Mac.update</em> and spools the cipher text to a temporary file; the second pass, which only happens
+    *  once the signature is verified, maps that file and decrypts it chunk by chunk into <em>output</em>. Only the
+    *  validation parameters of the validator are used, like the ByteBuffer overload.
+    *  @param input
+    *    the Base 64 URL encoding of a token in the form Version | Timestamp | IV | Ciphertext | HMAC, read until the end
+    *    of the stream, or less when the token is rejected early. It is not closed.
+    *  @param key
+    *    the secret key against which to validate the token
+    *  @param validator
+    *    an object that encapsulates the validation parameters (e.g. TTL)
+    *  @param output
+    *    the stream receiving the decrypted payload. It is not closed. Nothing is written to it unless the signature is
+    *    valid, but a token rejected for [[FailureReason.BadPadding]] leaves all but its last block in it.
+    *  @return
+    *    the length of the decrypted payload, or the reason the token was rejected
+    *  @throws IOException
+    *    if reading <em>input</em>, writing <em>output</em> or spooling the cipher text fails
+    */
+  def validateAndDecrypt(
+      input: InputStream,
+      key: Key,
+      validator: Validator[_],
+      output: OutputStream
+  ): Either[FailureReason, Long] = {
+    val source = new TrackedInputStream(input)
+    val token = new TrackedInputStream(decoder.wrap(source))
+    val spool = Files.createTempFile("fernet", ".spool")
+    val result =
+      try {
+        val channel = FileChannel.open(spool, READ, WRITE, DELETE_ON_CLOSE)
+        try decryptStream(token, key, validator, channel, output)
+        finally channel.close()
+      } catch {
+        // the decoder reports illegal characters as IOExceptions of its own, anything else is a genuine I/O error
+        case _: IOException if token.failed && !source.failed => Left(FailureReason.Malformed)
+      } finally Files.deleteIfExists(spool)
+    FernetMetrics.get.recordOutcome(result)
+    result
+  }
+
+  /** Verify and decrypt a token read from a channel, see the InputStream overload. */
+  def validateAndDecrypt(
+      input: ReadableByteChannel,
+      key: Key,
+      validator: Validator[_],
+      output: OutputStream
+  ): Either[FailureReason, Long] =
+    validateAndDecrypt(Channels.newInputStream(input), key, validator, output)
+
+  private def decryptStream(
+      token: InputStream,
+      key: Key,
+      validator: Validator[_],
+      spool: FileChannel,
+      output: OutputStream
+  ): Either[FailureReason, Long] = {
+    val header = new Array[Byte](tokenPrefixBytes)
+    if (token.readNBytes(header, 0, tokenPrefixBytes) < tokenPrefixBytes)
+      return Left(FailureReason.Malformed)
+    if (header(0) != supportedVersion) return Left(FailureReason.BadVersion)
+    val timestampSeconds = TokenView.readLong(header, versionBytes)
+    val outsideWindow = checkTimestamp(timestampSeconds, validator)
+    if (outsideWindow != null) return Left(outsideWindow)
 
-    response match {
-      case Success(value) => value
-      case Failure(ioe)   => throw new IllegalStateException(ioe.getMessage, ioe);
+    // first pass: everything but the last 32 bytes read so far is cipher text, the rest may be the HMAC
+    val context = key.context
+    val mac = context.mac
+    val metrics = FernetMetrics.get
+    val signed = metrics.start()
+    val pending = new Array[Byte](streamChunkBytes + signatureBytes)
+    var held = 0
+    var cipherTextLength = 0L
+    try {
+      mac.update(header)
+      var read = token.read(pending, held, pending.length - held)
+      while (read >= 0) {
+        held += read
+        if (held > signatureBytes) {
+          val cipherText = held - signatureBytes
+          mac.update(pending, 0, cipherText)
+          val chunk = ByteBuffer.wrap(pending, 0, cipherText)
+          while (chunk.hasRemaining) spool.write(chunk)
+          System.arraycopy(pending, cipherText, pending, 0, signatureBytes)
+          held = signatureBytes
+          cipherTextLength += cipherText
+        }
+        read = token.read(pending, held, pending.length - held)
+      }
+      if (
+        held < signatureBytes || cipherTextLength == 0 || cipherTextLength % cipherTextBlockSize != 0
+      ) return Left(FailureReason.Malformed)
+      val signature = mac.doFinal()
+      metrics.stop(Stage.VerifySignature, signed)
+      if (!KeyContext.isEqual(signature, 0, pending, 0, signatureBytes))
+        return Left(FailureReason.SignatureMismatch)
+    } finally mac.reset() // leaves the thread's Mac clean when rejecting midway
+    decryptChecked(validator.tokenCheck, pending, 0, timestampSeconds) {
+      decryptSpool(context, header, spool, cipherTextLength, output)
+    }
+  }
+
+  /** The second pass of the streaming verification: decrypt the verified cipher text from the spool into
+    *  <em>output</em>.
+    */
+  private def decryptSpool(
+      context: KeyContext,
+      header: Array[Byte],
+      spool: FileChannel,
+      cipherTextLength: Long,
+      output: OutputStream
+  ): Either[FailureReason, Long] = {
+    val metrics = FernetMetrics.get
+    val decrypting = metrics.start()
+    val cipher = context.cipher
+    try
+      cipher.init(
+        Cipher.DECRYPT_MODE,
+        context.encryptionKeySpec,
+        new IvParameterSpec(header, versionBytes + timestampBytes, initializationVectorBytes)
+      )
+    catch Key.encryptionFailure(context.encryptionKeySpec)
+    val plainText = ByteBuffer.allocate(streamChunkBytes + cipherTextBlockSize)
+    var payloadLength = 0L
+    var position = 0L
+    try {
+      while (position < cipherTextLength) {
+        val window = spool.map(
+          MapMode.READ_ONLY,
+          position,
+          math.min(spoolWindowBytes, cipherTextLength - position)
+        )
+        while (window.hasRemaining) {
+          window.limit(math.min(window.position() + streamChunkBytes, window.capacity))
+          plainText.clear()
+          payloadLength += cipher.update(window, plainText)
+          output.write(plainText.array, 0, plainText.position())
+          window.limit(window.capacity)
+        }
+        position += window.capacity
+      }
+      plainText.clear()
+      payloadLength += cipher.doFinal(ByteBuffer.allocate(0), plainText)
+      output.write(plainText.array, 0, plainText.position())
+    } catch {
+      case _: BadPaddingException => return Left(FailureReason.BadPadding)
+      case e @ (_: IllegalBlockSizeException | _: ShortBufferException) =>
+        // these should not happen as the length of the cipher text is checked and the chunk has room for a block more
+        throw new IllegalStateException(e.getMessage, e)
     }
+    metrics.stop(Stage.Decrypt, decrypting)
+    Right(payloadLength)
+  }
+
+  /** Remembers whether reading a stream failed, to tell the I/O errors of the input, of the output and of the spool
+    *  from illegal characters rejected by the decoder.
+    */
+  private final class TrackedInputStream(in: InputStream) extends FilterInputStream(in) {
+    var failed = false
+
+    override def read(): Int =
+      try in.read()
+      catch {
+        case e: IOException =>
+          failed = true
+          throw e
+      }
+
+    override def read(b: Array[Byte], off: Int, len: Int): Int =
+      try in.read(b, off, len)
+      catch {
+        case e: IOException =>
+          failed = true
+          throw e
+      }
+  }
 
+  /** @return
+    *    the reason a token issued at <em>timestampSeconds</em> is outside the validity window of the validator, or
+    *    null if it is inside
+    */
+  private def checkTimestamp(
+      timestampSeconds: Long,
+      validator: Validator[_]
+  ): FailureReason = {
+    val now = validator.currentEpochSecond
+    FernetMetrics.get.recordTokenAge(now - timestampSeconds)
+    if (timestampSeconds <= validator.earliestValidEpochSecond(now))
+      FailureReason.Expired
+    else if (timestampSeconds >= validator.latestValidEpochSecond(now))
+      FailureReason.FutureTimestamp
+    else null
+  }
+
+  /** Read a Token from bytes. This does NOT validate that the token was generated using a valid Key.
+    *  @param bytes
+    *    a Fernet token in the form Version | Timestamp | IV | Ciphertext | HMAC
+    *  @return
+    *    a new WHToken
+    */
+  def fromBytes(bytes: Array[Byte]): Try[Token] =
+    TokenView.fromBytes(bytes).map(_.toToken)
+
+  /** Read a Token from a (possibly direct) buffer. This does NOT validate that the token was generated using a valid
+    *  Key. The layout is checked in place, then each field is copied once out of the buffer into the array the Token
+    *  holds it in, with no intermediate copy of the whole token; to verify and decrypt a token without copying it to
+    *  the heap at all, use the ByteBuffer overload of <em>validateAndDecrypt</em> instead.
+    *  @param buffer
+    *    a Fernet token in the form Version | Timestamp | IV | Ciphertext | HMAC, from its position to its limit. The
+    *    position advances to the limit.
+    *  @return
+    *    a new WHToken
+    */
+  def fromBuffer(buffer: ByteBuffer): Try[Token] = {
+    val start = buffer.position()
+    val length = buffer.remaining
+    val rejected =
+      if (length < minimumTokenBytes) FailureReason.Malformed
+      else if (buffer.get(start) != supportedVersion) FailureReason.BadVersion
+      else if ((length - tokenStaticBytes) % cipherTextBlockSize != 0)
+        FailureReason.Malformed
+      else null
+    if (rejected != null) {
+      buffer.position(buffer.limit())
+      return Failure(rejected.toException)
+    }
+    val timestampSeconds = TokenView.readLong(buffer, start + versionBytes)
+    val initializationVector = new Array[Byte](initializationVectorBytes)
+    val cipherText = new Array[Byte](length - tokenStaticBytes)
+    val hmac = new Array[Byte](signatureBytes)
+    buffer.position(start + versionBytes + timestampBytes)
+    buffer.get(initializationVector).get(cipherText).get(hmac)
+    Try(
+      initializeToken(
+        supportedVersion,
+        Instant.ofEpochSecond(timestampSeconds),
+        new IvParameterSpec(initializationVector),
+        cipherText,
+        hmac
+      )
+    )
   }
 
   /** Initialise a new Token from raw components. No validation of the signature is performed. However, the other fields
@@ -0,0 +1,29 @@
+package com.github.imcamilo.fernet
+
+import java.nio.charset.StandardCharsets.US_ASCII
+
+/** Serialised tokens laid out one after the other in a single array of Base 64 URL ASCII bytes, as produced by
+  *  [[Token.generateBatch]]. The token at index <em>i</em> occupies <em>length(i)</em> bytes from <em>offset(i)</em>.
+  *
+  *  @param bytes
+  *    the concatenated encodings of every token of the batch
+  */
+final class TokenBatch private[fernet] (
+    val bytes: Array[Byte],
+    offsets: Array[Int]
+) {
+
+  /** @return the number of tokens in the batch */
+  def size: Int = offsets.length - 1
+
+  def offset(index: Int): Int = offsets(index)
+
+  def length(index: Int): Int = offsets(index + 1) - offsets(index)
+
+  /** @return the serialised token at <em>index</em>, as returned by [[Token.serialise]] */
+  def apply(index: Int): String =
+    new String(bytes, offset(index), length(index), US_ASCII)
+
+  def iterator: Iterator[String] = Iterator.range(0, size).map(apply)
+
+}
@@ -0,0 +1,302 @@
+package com.github.imcamilo.fernet
+
+import com.github.imcamilo.metrics.{FernetMetrics, Stage}
+import com.github.imcamilo.validators.{TokenCheck, Validator}
+
+import java.nio.ByteBuffer
+import java.time.Instant
+import java.util.Arrays.copyOfRange
+import javax.crypto.spec.IvParameterSpec
+import scala.util.{Failure, Success, Try}
+
+/** A Fernet token read in place from the array it was decoded into. Unlike [[Token]] no field is copied out: each one
+  *  is exposed as an offset (and length) into <em>bytes</em>, and verification and decryption work on those slices.
+  *  Warning: Subsequent modifications to the array will write through to this object.
+  *
+  *  @param bytes
+  *    the array holding the token
+  *  @param offset
+  *    the position of the token in <em>bytes</em>
+  *  @param length
+  *    the length of the token, Version | Timestamp | IV | Ciphertext | HMAC
+  */
+final class TokenView private (
+    val bytes: Array[Byte],
+    val offset: Int,
+    val length: Int
+) {
+
+  import Constants._
+
+  def version: Byte = bytes(offset)
+
+  def timestampSeconds: Long = TokenView.readLong(bytes, offset + versionBytes)
+
+  def timestamp: Instant = Instant.ofEpochSecond(timestampSeconds)
+
+  def initializationVectorOffset: Int = offset + versionBytes + timestampBytes
+
+  def cipherTextOffset: Int = offset + tokenPrefixBytes
+
+  def cipherTextLength: Int = length - tokenStaticBytes
+
+  def hmacOffset: Int = offset + length - signatureBytes
+
+  def isValidSignature(key: Key): Boolean =
+    key.context.isValidSignature(
+      version,
+      timestampSeconds,
+      bytes,
+      initializationVectorOffset,
+      bytes,
+      cipherTextOffset,
+      cipherTextLength,
+      bytes,
+      hmacOffset
+    )
+
+  /** Check the validity of this token, see [[Token.validateAndDecrypt]].
+    *  @return
+    *    the decrypted, deserialised payload of this token
+    */
+  def validateAndDecrypt[A](key: Key, validator: Validator[A]): Option[A] = {
+    validator.validate(key, this) match {
+      case Left(reason) =>
+        FailureLog.record("exception validating and decrypting key", reason)
+        None
+      case Right(value) =>
+        Option(value)
+    }
+  }
+
+  def validateAndDecrypt(
+      key: Key,
+      earliestValidInstant: Instant,
+      latestValidInstant: Instant
+  ): Array[Byte] =
+    validateAndDecrypt(
+      key,
+      earliestValidInstant.getEpochSecond,
+      latestValidInstant.getEpochSecond
+    )
+
+  /** Check the validity of this token against a window given in whole seconds since the epoch, then decrypt it, see
+    *  [[Token.validateAndDecrypt]].
+    */
+  def validateAndDecrypt(
+      key: Key,
+      earliestValidEpochSecond: Long,
+      latestValidEpochSecond: Long
+  ): Array[Byte] =
+    decryptIfValid(key, earliestValidEpochSecond, latestValidEpochSecond) match {
+      case Right(plainText) => plainText
+      case Left(reason)     => throw reason.toException
+    }
+
+  /** Check the validity of this token against a window given in whole seconds since the epoch, then decrypt it,
+    *  without throwing, see [[Token.decryptIfValid]].
+    */
+  def decryptIfValid(
+      key: Key,
+      earliestValidEpochSecond: Long,
+      latestValidEpochSecond: Long,
+      check: TokenCheck = null
+  ): Either[FailureReason, Array[Byte]] = {
+    val rejected = Token.checkWindow(
+      version,
+      timestampSeconds,
+      earliestValidEpochSecond,
+      latestValidEpochSecond
+    )
+    if (rejected != null) Left(rejected)
+    else if (!isValidSignature(key)) Left(FailureReason.SignatureMismatch)
+    else Token.decryptVerified(bytes, offset, length, key, check)
+  }
+
+  /** Verify this token, then decrypt its payload over its cipher text, see [[Token.decryptInPlace]]. Once the
+    *  signature is verified the cipher text is overwritten, and this view no longer holds a valid token.
+    *  @return
+    *    the decrypted payload, to close once read, or the reason the token was rejected
+    */
+  def decryptInPlace(
+      key: Key,
+      validator: Validator[_]
+  ): Either[FailureReason, PlainText] =
+    Token.decryptInPlace(bytes, offset, length, key, validator)
+
+  /** @return a Token holding copies of the fields of this view */
+  def toToken: Token =
+    Token.initializeToken(
+      version,
+      timestamp,
+      new IvParameterSpec(
+        bytes,
+        initializationVectorOffset,
+        initializationVectorBytes
+      ),
+      copyOfRange(bytes, cipherTextOffset, cipherTextOffset + cipherTextLength),
+      copyOfRange(bytes, hmacOffset, hmacOffset + signatureBytes)
+    )
+
+}
+
+object TokenView {
+
+  import Constants._
+
+  /** Deserialise a Base64 URL Fernet token string into a view over the decoded bytes. This does NOT validate that the
+    *  token was generated using a valid Key.
+    *  @param string
+    *    the Base 64 URL encoding of a token in the form Version | Timestamp | IV | Ciphertext | HMAC
+    *  @return
+    *    a view over the decoded token
+    */
+  def fromString(string: String): Option[TokenView] = {
+    val metrics = FernetMetrics.get
+    val started = metrics.start()
+    val result =
+      try {
+        val bytes = decoder.decode(string)
+        read(bytes, 0, bytes.length)
+      } catch {
+        case _: IllegalArgumentException => Left(FailureReason.Malformed)
+      }
+    metrics.stop(Stage.Decode, started)
+    result match {
+      case Left(reason) =>
+        FailureLog.record("exception decoding from bytes", reason)
+        None
+      case Right(value) =>
+        Option(value)
+    }
+  }
+
+  /** Decode the Base 64 URL encoding of a token held in any sequence of characters, e.g. a CharBuffer, into a
+    *  destination the caller reuses from one token to the next, and view it there. The length of the encoding is
+    *  checked before anything is decoded. This does NOT validate that the token was generated using a valid Key; pass
+    *  the slice of the view to [[Token.validateAndDecrypt]] for that.
+    *  @param dst
+    *    the array receiving the decoded token at its start, which the view is over. A token longer than it is
+    *    rejected as [[FailureReason.Malformed]].
+    *  @return
+    *    a view over <em>dst</em>, or the reason the input cannot hold a token
+    */
+  def decode(
+      chars: CharSequence,
+      dst: Array[Byte]
+  ): Either[FailureReason, TokenView] =
+    decode(Base64Url.decodedLength(chars), dst, Base64Url.decode(chars, dst, 0))
+
+  /** Decode the Base 64 URL encoding of a token held in a slice of ASCII bytes, e.g. a header value in the buffer of
+    *  a request, into a reusable destination, see the CharSequence overload.
+    */
+  def decode(
+      ascii: Array[Byte],
+      offset: Int,
+      length: Int,
+      dst: Array[Byte]
+  ): Either[FailureReason, TokenView] =
+    decode(
+      Base64Url.decodedLength(ascii, offset, length),
+      dst,
+      Base64Url.decode(ascii, offset, length, dst, 0)
+    )
+
+  /** Decode the Base 64 URL encoding of a token held in ASCII from the position to the limit of a (possibly direct)
+    *  buffer, which is left untouched, into a reusable destination, see the CharSequence overload.
+    */
+  def decode(
+      ascii: ByteBuffer,
+      dst: Array[Byte]
+  ): Either[FailureReason, TokenView] =
+    decode(Base64Url.decodedLength(ascii), dst, Base64Url.decode(ascii, dst, 0))
+
+  private def decode(
+      decodedLength: Int,
+      dst: Array[Byte],
+      decodeInto: => Int
+  ): Either[FailureReason, TokenView] = {
+    val metrics = FernetMetrics.get
+    val started = metrics.start()
+    val result =
+      if (
+        decodedLength < minimumTokenBytes || decodedLength > dst.length ||
+        (decodedLength - tokenStaticBytes) % cipherTextBlockSize != 0
+      ) Left(FailureReason.Malformed)
+      else if (decodeInto < 0) Left(FailureReason.Malformed)
+      else read(dst, 0, decodedLength)
+    metrics.stop(Stage.Decode, started)
+    result
+  }
+
+  /** Read a token in place. This does NOT validate that the token was generated using a valid Key, however the layout
+    *  is validated to ensure it conforms to the Fernet specification.
+    *  @param bytes
+    *    a Fernet token in the form Version | Timestamp | IV | Ciphertext | HMAC
+    *  @return
+    *    a view over <em>bytes</em>
+    */
+  def fromBytes(bytes: Array[Byte]): Try[TokenView] =
+    fromBytes(bytes, 0, bytes.length)
+
+  /** Read a token in place from a slice of an array, see [[fromBytes(bytes:Array[Byte])*]]. */
+  def fromBytes(
+      bytes: Array[Byte],
+      offset: Int,
+      length: Int
+  ): Try[TokenView] =
+    read(bytes, offset, length) match {
+      case Right(view)  => Success(view)
+      case Left(reason) => Failure(reason.toException)
+    }
+
+  /** Read a token in place from a slice of an array, reporting a layout that does not conform to the Fernet
+    *  specification as a [[FailureReason]] rather than an exception.
+    *  @return
+    *    a view over the slice, or the reason it cannot hold a token
+    */
+  def read(
+      bytes: Array[Byte],
+      offset: Int,
+      length: Int
+  ): Either[FailureReason, TokenView] =
+    if (length < minimumTokenBytes) Left(FailureReason.Malformed)
+    else if (bytes(offset) != supportedVersion) Left(FailureReason.BadVersion)
+    else if ((length - tokenStaticBytes) % cipherTextBlockSize != 0)
+      Left(FailureReason.Malformed)
+    else Right(new TokenView(bytes, offset, length))
+
+  /** @return the big-endian long at <em>offset</em> in bytes */
+  def readLong(bytes: Array[Byte], offset: Int): Long = {
+    var result = 0L
+    var i = 0
+    while (i < 8) {
+      result = (result << 8) | (bytes(offset + i) & 0xff)
+      i += 1
+    }
+    result
+  }
+
+  /** Write a long in big-endian order at <em>offset</em> in bytes. */
+  def writeLong(bytes: Array[Byte], offset: Int, value: Long): Unit = {
+    var i = 7
+    var remaining = value
+    while (i >= 0) {
+      bytes(offset + i) = remaining.toByte
+      remaining >>>= 8
+      i -= 1
+    }
+  }
+
+  /** @return the big-endian long at <em>index</em> in buffer, whatever the byte order of the buffer */
+  def readLong(buffer: ByteBuffer, index: Int): Long = {
+    var result = 0L
+    var i = 0
+    while (i < 8) {
+      result = (result << 8) | (buffer.get(index + i) & 0xff)
+      i += 1
+    }
+    result
+  }
+
+}
@@ -0,0 +1,83 @@
+package com.github.imcamilo.metrics
+
+import jdk.jfr._
+
+import scala.annotation.meta.field
+
+/** Java Flight Recorder events for the token operations, so that the time spent in <em>Cipher</em> and <em>Mac</em>
+  *  frames of a recording can be tied back to the token that was issued or verified. Each event is only recorded when
+  *  the operation takes longer than its threshold, which can be lowered in the recording settings, e.g.
+  *  <code>jfr configure +com.github.imcamilo.fernet.TokenVerify#threshold=0ms</code>.
+  *
+  *  <p> The instrumented code follows the usual JFR pattern: the event is created and begun before the operation, and
+  *  its fields are only filled in when <em>shouldCommit</em> holds, so no work is done while no recording is running.
+  */
+object FernetEvents {
+
+  final val Category = "Fernet"
+
+}
+
+@Name("com.github.imcamilo.fernet.TokenGenerate")
+@Label("Token Generate")
+@Description("A Fernet token encrypted and signed")
+@Category(Array(FernetEvents.Category))
+@Threshold("1 ms")
+@StackTrace(false)
+final class TokenGenerateEvent extends Event {
+
+  @(Label @field)("Payload Size")
+  @(DataAmount @field)(DataAmount.BYTES)
+  var payloadSize: Int = _
+
+}
+
+@Name("com.github.imcamilo.fernet.TokenDecode")
+@Label("Token Decode")
+@Description("A Fernet token string decoded and its layout read")
+@Category(Array(FernetEvents.Category))
+@Threshold("1 ms")
+@StackTrace(false)
+final class TokenDecodeEvent extends Event {
+
+  @(Label @field)("Token Length")
+  @(DataAmount @field)(DataAmount.BYTES)
+  var tokenLength: Int = _
+
+  @(Label @field)("Valid")
+  var valid: Boolean = _
+
+  @(Label @field)("Failure Reason")
+  var failureReason: String = _
+
+}
+
+@Name("com.github.imcamilo.fernet.TokenVerify")
+@Label("Token Verify")
+@Description("A Fernet token verified, decrypted and deserialised by a validator")
+@Category(Array(FernetEvents.Category))
+@Threshold("1 ms")
+@StackTrace(false)
+final class TokenVerifyEvent extends Event {
+
+  @(Label @field)("Cipher Text Length")
+  @(DataAmount @field)(DataAmount.BYTES)
+  var cipherTextLength: Int = _
+
+  @(Label @field)("Valid")
+  var valid: Boolean = _
+
+  @(Label @field)("Failure Reason")
+  var failureReason: String = _
+
+  @(Label @field)("Verify and Decrypt Duration")
+  @(Description @field)("Time spent checking the signature and decrypting the payload")
+  @(Timespan @field)(Timespan.NANOSECONDS)
+  var decryptDuration: Long = _
+
+  @(Label @field)("Transform Duration")
+  @(Description @field)("Time spent deserialising and checking the payload")
+  @(Timespan @field)(Timespan.NANOSECONDS)
+  var transformDuration: Long = _
+
+}
@@ -0,0 +1,93 @@
+package com.github.imcamilo.metrics
+
+import com.github.imcamilo.fernet.FailureReason
+
+/** Receives measurements from the library: the latency of each [[Stage]], the outcome of each verification and the
+  *  age of each token verified. Install an implementation with [[FernetMetrics.set]], e.g. a [[StripedMetrics]] or a
+  *  bridge to another metrics system. Implementations must be thread safe and should not block.
+  *
+  *  Instrumented code reads the installed instance once per call and brackets a stage with [[start]] and [[stop]],
+  *  so with the default [[FernetMetrics.NoOp]] the clock is never read and every call inlines to nothing.
+  */
+trait FernetMetrics {
+
+  /** @return the start time of a stage, passed back to [[stop]] */
+  def start(): Long = System.nanoTime
+
+  /** Record the end of a stage started at <em>startNanos</em>. */
+  def stop(stage: Stage, startNanos: Long): Unit =
+    recordLatency(stage, System.nanoTime - startNanos)
+
+  def recordLatency(stage: Stage, nanos: Long): Unit
+
+  /** Record a token that passed verification. */
+  def recordSuccess(): Unit
+
+  /** Record a token rejected for <em>reason</em>. */
+  def recordFailure(reason: FailureReason): Unit
+
+  /** Record the age, in seconds, of a token at the time it is verified. It is negative for a token from the future. */
+  def recordTokenAge(seconds: Long): Unit
+
+  /** Record the outcome of a verification. */
+  def recordOutcome(result: Either[FailureReason, _]): Unit = result match {
+    case Left(reason) => recordFailure(reason)
+    case Right(_)     => recordSuccess()
+  }
+
+}
+
+object FernetMetrics {
+
+  /** Records nothing, and does not read the clock. */
+  object NoOp extends FernetMetrics {
+    override def start(): Long = 0L
+    override def stop(stage: Stage, startNanos: Long): Unit = ()
+    override def recordLatency(stage: Stage, nanos: Long): Unit = ()
+    override def recordSuccess(): Unit = ()
+    override def recordFailure(reason: FailureReason): Unit = ()
+    override def recordTokenAge(seconds: Long): Unit = ()
+    override def recordOutcome(result: Either[FailureReason, _]): Unit = ()
+  }
+
+  @volatile private var instance: FernetMetrics = NoOp
+
+  /** @return the installed metrics, [[NoOp]] unless another one was set */
+  def get: FernetMetrics = instance
+
+  /** Install the metrics the library reports to. */
+  def set(metrics: FernetMetrics): Unit = {
+    if (metrics == null)
+      throw new IllegalArgumentException("metrics cannot be null")
+    instance = metrics
+  }
+
+}
+
+/** A measured step of generating or verifying a token. */
+sealed abstract class Stage(val ordinal: Int, val name: String) {
+  override def toString: String = name
+}
+
+object Stage {
+
+  /** Encrypting and signing a new token, see [[com.github.imcamilo.fernet.Token.generate]]. */
+  case object Generate extends Stage(0, "generate")
+
+  /** Decoding a token string and reading its layout, see [[com.github.imcamilo.fernet.Token.fromString]]. */
+  case object Decode extends Stage(1, "decode")
+
+  /** Computing and comparing the HMAC of a token against one key. */
+  case object VerifySignature extends Stage(2, "verifySignature")
+
+  /** Decrypting the payload of a verified token, see [[com.github.imcamilo.fernet.Key.decrypt]]. */
+  case object Decrypt extends Stage(3, "decrypt")
+
+  /** Deserialising and checking the payload with the transformer and the object validator of a validator. */
+  case object Transform extends Stage(4, "transform")
+
+  /** Every stage, indexed by ordinal. */
+  val values: IndexedSeq[Stage] =
+    Vector(Generate, Decode, VerifySignature, Decrypt, Transform)
+
+}
@@ -0,0 +1,76 @@
+package com.github.imcamilo.metrics
+
+import com.github.imcamilo.fernet.FailureReason
+
+/** The measurements of a [[StripedMetrics]] at one point in time.
+  *
+  *  @param latencies
+  *    the latency, in nanoseconds, of each stage
+  *  @param successes
+  *    the number of tokens that passed verification
+  *  @param failures
+  *    the number of tokens rejected for each reason
+  *  @param tokenAges
+  *    the age, in seconds, of the tokens verified
+  *  @param futureTokens
+  *    the number of tokens verified before the time they claim to have been issued
+  */
+final class MetricsSnapshot(
+    val latencies: Map[Stage, HistogramSnapshot],
+    val successes: Long,
+    val failures: Map[FailureReason, Long],
+    val tokenAges: HistogramSnapshot,
+    val futureTokens: Long
+) {
+
+  /** @return the number of tokens rejected, whatever the reason */
+  def failureCount: Long = failures.values.sum
+
+}
+
+/** Counts of values in power of two buckets, see [[upperBound]].
+  *
+  *  @param buckets
+  *    the number of values recorded in each bucket
+  *  @param sum
+  *    the sum of the values recorded
+  */
+final class HistogramSnapshot(val buckets: IndexedSeq[Long], val sum: Long) {
+
+  /** @return the number of values recorded */
+  def count: Long = buckets.sum
+
+  def mean: Double = if (count == 0) 0.0 else sum.toDouble / count
+
+  /** @return the largest value held by a bucket */
+  def upperBound(bucket: Int): Long =
+    if (bucket >= java.lang.Long.SIZE - 1) Long.MaxValue
+    else (1L << bucket) - 1
+
+  /** @return
+    *    an upper bound, within a factor of two, of the value under which a <em>quantile</em> of the values recorded
+    *    fall, or 0 if none was recorded
+    */
+  def percentile(quantile: Double): Long = {
+    if (quantile < 0 || quantile > 1)
+      throw new IllegalArgumentException("quantile must be between 0 and 1")
+    val total = count
+    val rank = math.ceil(quantile * total).toLong
+    var seen = 0L
+    var bucket = 0
+    while (bucket < buckets.length) {
+      seen += buckets(bucket)
+      if (seen >= rank && seen > 0) return upperBound(bucket)
+      bucket += 1
+    }
+    0L
+  }
+
+}
+
+object HistogramSnapshot {
+
+  /** The number of buckets: one for 0, then one per power of two up to Long.MaxValue. */
+  val Buckets: Int = java.lang.Long.SIZE
+
+}
@@ -0,0 +1,70 @@
+package com.github.imcamilo.metrics
+
+import com.github.imcamilo.fernet.FailureReason
+
+import java.util.concurrent.atomic.LongAdder
+
+/** [[FernetMetrics]] kept in memory: a [[LongAdder]] per outcome and per failure reason, and a log2 histogram with a
+  *  [[LongAdder]] per bucket per stage and for token ages, so that threads recording on different cores do not
+  *  contend on the same cache lines. Read them with [[snapshot]].
+  */
+final class StripedMetrics extends FernetMetrics {
+
+  private val latencies =
+    Array.fill(Stage.values.length)(new StripedMetrics.Histogram)
+  private val tokenAges = new StripedMetrics.Histogram
+  private val futureTokens = new LongAdder
+  private val successes = new LongAdder
+  private val failures =
+    Array.fill(FailureReason.values.length)(new LongAdder)
+
+  override def recordLatency(stage: Stage, nanos: Long): Unit =
+    latencies(stage.ordinal).record(nanos)
+
+  override def recordSuccess(): Unit = successes.increment()
+
+  override def recordFailure(reason: FailureReason): Unit =
+    failures(reason.code).increment()
+
+  override def recordTokenAge(seconds: Long): Unit =
+    if (seconds < 0) futureTokens.increment() else tokenAges.record(seconds)
+
+  /** @return a copy of the measurements so far. Concurrent updates may or may not be included. */
+  def snapshot: MetricsSnapshot =
+    new MetricsSnapshot(
+      Stage.values.map(stage => stage -> latencies(stage.ordinal).snapshot).toMap,
+      successes.sum,
+      FailureReason.values.tail
+        .map(reason => reason -> failures(reason.code).sum)
+        .toMap,
+      tokenAges.snapshot,
+      futureTokens.sum
+    )
+
+}
+
+object StripedMetrics {
+
+  /** Counts of non-negative values in power of two buckets: bucket 0 holds 0, bucket <em>i</em> holds the values from
+    *  2^(i-1) to 2^i - 1. Each bucket is striped like the other counters, as the few buckets a stage usually falls in
+    *  would otherwise be incremented by every core.
+    */
+  private final class Histogram {
+
+    private val buckets = Array.fill(HistogramSnapshot.Buckets)(new LongAdder)
+    private val sum = new LongAdder
+
+    def record(value: Long): Unit = {
+      val clamped = math.max(value, 0L)
+      buckets(
+        java.lang.Long.SIZE - java.lang.Long.numberOfLeadingZeros(clamped)
+      ).increment()
+      sum.add(clamped)
+    }
+
+    def snapshot: HistogramSnapshot =
+      new HistogramSnapshot(buckets.map(_.sum).toIndexedSeq, sum.sum)
+
+  }
+
+}
@@ -0,0 +1,89 @@
+package com.github.imcamilo.validators
+
+import com.github.imcamilo.fernet.Constants.{decoder, tokenStaticBytes}
+import com.github.imcamilo.fernet.{FailureReason, Key, Token, TokenView}
+
+import java.nio.ByteBuffer
+import java.time.Clock
+import java.time.temporal.TemporalAmount
+import java.util.function.Predicate
+
+/** A validator that remembers the tokens another one accepted, see [[VerifiedTokenCache]]. It validates with the
+  *  same parameters as <em>validator</em>; a token found in the cache is neither verified nor decrypted again and
+  *  its cached payload is returned as is. Rejected tokens are not cached.
+  *
+  *  @param validator
+  *    the validator verifying the tokens missing from the cache
+  *  @param cache
+  *    the cache of accepted tokens, which can be shared by validators with the same parameters
+  */
+class CachedValidator[A](
+    val validator: Validator[A],
+    val cache: VerifiedTokenCache[A] = new VerifiedTokenCache[A]()
+) extends Validator[A] {
+
+  override def getClock: Clock = validator.getClock
+
+  override def getTimeToLive: TemporalAmount = validator.getTimeToLive
+
+  override def getMaxClockSkew: TemporalAmount = validator.getMaxClockSkew
+
+  override def getObjectValidator: Predicate[A] = validator.getObjectValidator
+
+  override def getTransformer: Array[Byte] => A = validator.getTransformer
+
+  override def getTokenChecks: Seq[TokenCheck] = validator.getTokenChecks
+
+  override def validate(key: Key, token: Token): Either[FailureReason, A] = {
+    val bytes = ByteBuffer.allocate(tokenStaticBytes + token.cipherText.length)
+    Token.writeTo(bytes, token)
+    TokenView.read(bytes.array, 0, bytes.position()) match {
+      case Right(view)  => validate(key, view)
+      case Left(reason) => Left(reason)
+    }
+  }
+
+  override def validate(key: Key, token: TokenView): Either[FailureReason, A] = {
+    val now = currentEpochSecond
+    val cached = cache.find(key, token, now)
+    if (cached != null) {
+      // a cached token may have been revoked since
+      val check = tokenCheck
+      val rejected =
+        if (check == null) null
+        else check.check(token.bytes, token.hmacOffset, token.timestampSeconds)
+      if (rejected != null) Left(rejected) else Right(cached.payload)
+    } else {
+      val result = validator.validate(key, token)
+      result match {
+        case Right(payload) =>
+          cache.put(
+            key,
+            token,
+            VerifiedTokenCache.expiresAt(token.timestampSeconds, timeToLiveSeconds),
+            payload,
+            now
+          )
+        case _ =>
+      }
+      result
+    }
+  }
+
+  /** Decode a Base64 URL Fernet token string then validate it like a token read in place.
+    *  @return
+    *    the deserialized contents of the token, or the reason it was rejected
+    */
+  def validate(key: Key, token: String): Either[FailureReason, A] = {
+    val bytes =
+      try decoder.decode(token)
+      catch {
+        case _: IllegalArgumentException => return Left(FailureReason.Malformed)
+      }
+    TokenView.read(bytes, 0, bytes.length) match {
+      case Right(view)  => validate(key, view)
+      case Left(reason) => Left(reason)
+    }
+  }
+
+}
@@ -0,0 +1,73 @@
+package com.github.imcamilo.validators
+
+import java.time.{Clock, Instant, ZoneId, ZoneOffset}
+import java.util.concurrent.{Executors, ThreadFactory, TimeUnit}
+
+/** A clock ticking in whole seconds, like <em>Clock.tickSeconds</em>, whose current second is a primitive read from a
+  *  shared field instead of a call to the system clock. The field is refreshed by a single daemon thread for the
+  *  whole JVM; it changes once per second and lags the system clock by at most [[CoarseClock.RefreshMillis]].
+  *
+  *  @param zone
+  *    the time-zone of the clock, which does not affect the current second
+  */
+final class CoarseClock private (zone: ZoneId) extends Clock {
+
+  /** @return the current time, in whole seconds since the epoch */
+  def currentEpochSecond: Long = CoarseClock.currentEpochSecond
+
+  override def getZone: ZoneId = zone
+
+  override def withZone(zone: ZoneId): Clock =
+    if (zone == this.zone) this else new CoarseClock(zone)
+
+  override def instant(): Instant = Instant.ofEpochSecond(currentEpochSecond)
+
+  override def millis(): Long = currentEpochSecond * 1000
+
+  override def equals(other: Any): Boolean = other match {
+    case clock: CoarseClock => clock.getZone == zone
+    case _                  => false
+  }
+
+  override def hashCode: Int = zone.hashCode + 1
+
+  override def toString: String = "CoarseClock[" + zone + "]"
+
+}
+
+object CoarseClock {
+
+  /** How often the shared second is compared with the system clock. */
+  val RefreshMillis: Long = 100
+
+  @volatile private var epochSecond: Long = systemEpochSecond()
+
+  /** The coarse clock in UTC, the default clock of every [[Validator]]. */
+  val utc: CoarseClock = new CoarseClock(ZoneOffset.UTC)
+
+  {
+    val threadFactory: ThreadFactory = (runnable: Runnable) => {
+      val thread = new Thread(runnable, "fernet4s-coarse-clock")
+      thread.setDaemon(true)
+      thread
+    }
+    Executors
+      .newSingleThreadScheduledExecutor(threadFactory)
+      .scheduleAtFixedRate(
+        () => {
+          val now = systemEpochSecond()
+          if (now != epochSecond) epochSecond = now
+        },
+        RefreshMillis,
+        RefreshMillis,
+        TimeUnit.MILLISECONDS
+      )
+  }
+
+  /** @return the current time, in whole seconds since the epoch */
+  def currentEpochSecond: Long = epochSecond
+
+  private def systemEpochSecond(): Long =
+    Math.floorDiv(System.currentTimeMillis, 1000L)
+
+}
@@ -0,0 +1,44 @@
+package com.github.imcamilo.validators
+
+import com.github.imcamilo.fernet.FailureReason
+
+/** A check run on a token once its signature is verified and before it is decrypted, e.g. against a list of revoked
+  *  tokens. Install checks with [[Validator.getTokenChecks]].
+  */
+trait TokenCheck {
+
+  /** @param hmac
+    *    an array holding the verified 256 bit HMAC of the token at <em>hmacOffset</em>
+    *  @param timestampSeconds
+    *    the time the token was issued, in seconds since the epoch
+    *  @return
+    *    the reason the token is rejected, or null if it passes
+    */
+  def check(
+      hmac: Array[Byte],
+      hmacOffset: Int,
+      timestampSeconds: Long
+  ): FailureReason
+
+}
+
+object TokenCheck {
+
+  /** @return a check running each of <em>checks</em> in turn until one rejects the token, or null if there is none */
+  def all(checks: Seq[TokenCheck]): TokenCheck = checks match {
+    case Seq()      => null
+    case Seq(check) => check
+    case _ =>
+      val array = checks.toArray
+      (hmac: Array[Byte], hmacOffset: Int, timestampSeconds: Long) => {
+        var rejected: FailureReason = null
+        var i = 0
+        while (rejected == null && i < array.length) {
+          rejected = array(i).check(hmac, hmacOffset, timestampSeconds)
+          i += 1
+        }
+        rejected
+      }
+  }
+
+}
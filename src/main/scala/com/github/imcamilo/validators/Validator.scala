@@ -1,25 +1,66 @@
 package com.github.imcamilo.validators
 
-import com.github.imcamilo.exceptions.OutputValidationException
-import com.github.imcamilo.fernet.{Key, Token}
+import com.github.imcamilo.fernet.{FailureReason, Key, Token, TokenView}
+import com.github.imcamilo.metrics.{FernetMetrics, Stage, TokenVerifyEvent}
 
 import java.nio.charset.Charset
 import java.nio.charset.StandardCharsets.UTF_8
 import java.time.temporal.TemporalAmount
-import java.time.{Clock, Duration, Instant, ZoneOffset}
+import java.time.{Clock, Duration, Instant, OffsetDateTime, ZoneOffset}
+import java.util.Arrays.fill
 import java.util.function.Predicate
-import scala.util.Try;
+import scala.util.control.NonFatal
+import scala.util.{Failure, Success, Try};
 
 trait Validator[A] {
 
-  def getClock: Clock = Clock.tickSeconds(ZoneOffset.UTC)
+  /** @return the clock tokens are validated against. The default [[CoarseClock]] is read without a system call; any
+    *  other clock, e.g. a fixed one in tests, is asked for its instant on every validation.
+    */
+  def getClock: Clock = CoarseClock.utc
 
   def getTimeToLive: TemporalAmount = Duration.ofSeconds(60)
 
   def getMaxClockSkew: TemporalAmount = Duration.ofSeconds(60)
 
+  /** The time to live, in seconds, computed once from [[getTimeToLive]]. */
+  lazy val timeToLiveSeconds: Long = Validator.toSeconds(getTimeToLive)
+
+  /** The maximum clock skew, in seconds, computed once from [[getMaxClockSkew]]. */
+  lazy val maxClockSkewSeconds: Long = Validator.toSeconds(getMaxClockSkew)
+
+  /** @return the current time of the clock of this validator, in whole seconds since the epoch */
+  def currentEpochSecond: Long = getClock match {
+    case coarse: CoarseClock => coarse.currentEpochSecond
+    case clock               => clock.instant().getEpochSecond
+  }
+
+  /** @return the latest timestamp, in seconds, of a token that is expired at <em>now</em> */
+  def earliestValidEpochSecond(now: Long): Long =
+    saturatedSubtract(now, timeToLiveSeconds)
+
+  /** @return the earliest timestamp, in seconds, of a token that is too far in the future at <em>now</em> */
+  def latestValidEpochSecond(now: Long): Long =
+    saturatedSubtract(now, -maxClockSkewSeconds)
+
+  private def saturatedSubtract(a: Long, b: Long): Long = {
+    val result = a - b
+    // overflow iff the operands have different signs and the result has not the sign of a
+    if (((a ^ b) & (a ^ result)) < 0) {
+      if (a < 0) Long.MinValue else Long.MaxValue
+    } else result
+  }
+
   def getObjectValidator: Predicate[A] = (payload: A) => true
 
+  /** @return the checks run on a token once its signature is verified and before it is decrypted, e.g. a
+    *  [[com.github.imcamilo.fernet.RevocationFilter]]
+    */
+  def getTokenChecks: Seq[TokenCheck] = Nil
+
+  /** The checks of [[getTokenChecks]] combined once into one, or null if there is none. */
+  lazy val tokenCheck: TokenCheck = TokenCheck.all(getTokenChecks)
+
   def getTransformer: Array[Byte] => A
 
   /** Check the validity of the token then decrypt and deserialise the payload.
@@ -31,23 +72,126 @@ trait Validator[A] {
     *    the deserialized contents of the token
     */
   def validateAndDecrypt(key: Key, token: Token): Try[A] =
-    Try {
-      val now = Instant.now(getClock)
-      val plainText = token.validateAndDecrypt(
-        key,
-        now.minus(getTimeToLive),
-        now.plus(getMaxClockSkew)
-      )
-      val finalResponseObject = getTransformer(plainText)
-      val isObjectValid = getObjectValidator.test(finalResponseObject)
-      val response =
-        if (isObjectValid) finalResponseObject
+    toTry(validate(key, token))
+
+  /** Check the validity of a token read in place then decrypt and deserialise the payload.
+    *  @param key
+    *    the stored shared secret key
+    *  @param token
+    *    a view over the client-provided token of unknown validity
+    *  @return
+    *    the deserialized contents of the token
+    */
+  def validateAndDecrypt(key: Key, token: TokenView): Try[A] =
+    toTry(validate(key, token))
+
+  /** Check the validity of the token then decrypt and deserialise the payload, without throwing or capturing a stack
+    *  trace when the token is rejected.
+    *  @param key
+    *    the stored shared secret key
+    *  @param token
+    *    the client-provided token of unknown validity
+    *  @return
+    *    the deserialized contents of the token, or the reason it was rejected
+    */
+  def validate(key: Key, token: Token): Either[FailureReason, A] =
+    validate(
+      token.timestamp.getEpochSecond,
+      token.cipherText.length,
+      token.decryptIfValid(key, _: Long, _: Long, tokenCheck)
+    )
+
+  /** Check the validity of a token read in place then decrypt and deserialise the payload, without throwing, see
+    *  the Token overload.
+    */
+  def validate(key: Key, token: TokenView): Either[FailureReason, A] =
+    validate(
+      token.timestampSeconds,
+      token.cipherTextLength,
+      token.decryptIfValid(key, _: Long, _: Long, tokenCheck)
+    )
+
+  private def validate(
+      timestampSeconds: Long,
+      cipherTextLength: Int,
+      decrypt: (Long, Long) => Either[FailureReason, Array[Byte]]
+  ): Either[FailureReason, A] = {
+    val event = new TokenVerifyEvent
+    event.begin()
+    val timed = event.isEnabled
+    val decryptStart = if (timed) System.nanoTime else 0L
+    val metrics = FernetMetrics.get
+    val now = currentEpochSecond
+    metrics.recordTokenAge(now - timestampSeconds)
+    val decrypted =
+      decrypt(earliestValidEpochSecond(now), latestValidEpochSecond(now))
+    val transformStart = if (timed) System.nanoTime else 0L
+    val result = decrypted match {
+      case Right(plainText) => deserialise(plainText)
+      case Left(reason)     => Left(reason)
+    }
+    val transformEnd = if (timed) System.nanoTime else 0L
+    metrics.recordOutcome(result)
+    event.end()
+    if (event.shouldCommit) {
+      event.cipherTextLength = cipherTextLength
+      event.valid = result.isRight
+      event.failureReason = result.left.toOption.map(_.toString).orNull
+      event.decryptDuration = transformStart - decryptStart
+      event.transformDuration = transformEnd - transformStart
+      event.commit()
+    }
+    result
+  }
+
+  /** Deserialise the decrypted payload of a verified token with the transformer and check it with the object
+    *  validator. A rejected payload is zeroed.
+    *  @param plainText
+    *    the decrypted payload
+    *  @return
+    *    the deserialized payload, or [[FailureReason.InvalidPayload]] if it cannot be deserialised or is not valid
+    */
+  def deserialise(plainText: Array[Byte]): Either[FailureReason, A] = {
+    val metrics = FernetMetrics.get
+    val started = metrics.start()
+    val result =
+      try {
+        val payload = getTransformer(plainText)
+        if (getObjectValidator.test(payload)) Right(payload)
         else {
-          val cleanedPlainText = plainText.clone().map(_ => 0)
-          throw new OutputValidationException("Invalid Fernet token payload.")
+          fill(plainText, 0.toByte)
+          Left(FailureReason.InvalidPayload)
         }
-      response
-    }
+      } catch {
+        case NonFatal(_) =>
+          fill(plainText, 0.toByte)
+          Left(FailureReason.InvalidPayload)
+      }
+    metrics.stop(Stage.Transform, started)
+    result
+  }
+
+  private def toTry(result: Either[FailureReason, A]): Try[A] = result match {
+    case Right(payload) => Success(payload)
+    case Left(reason)   => Failure(reason.toException)
+  }
+
+}
+
+object Validator {
+
+  /** @return
+    *    the length of <em>amount</em> in whole seconds. A Duration is read as is; any other amount, e.g. a Period of
+    *    days or months, is measured from the epoch in UTC, since Duration.from rejects the estimated units it carries.
+    */
+  def toSeconds(amount: TemporalAmount): Long = amount match {
+    case duration: Duration => duration.getSeconds
+    case other =>
+      OffsetDateTime
+        .ofInstant(Instant.EPOCH, ZoneOffset.UTC)
+        .plus(other)
+        .toEpochSecond
+  }
 
 }
 
@@ -0,0 +1,185 @@
+package com.github.imcamilo.validators
+
+import com.github.imcamilo.fernet.Constants.signatureBytes
+import com.github.imcamilo.fernet.{Key, TokenView}
+
+import java.util.Arrays
+import java.util.concurrent.atomic.LongAdder
+
+/** A bounded cache of the payloads of tokens that passed verification, so that a client presenting the same token
+  *  again does not pay for the HMAC and the AES decryption again.
+  *
+  *  <p> Entries are found by the HMAC of the token, which is a uniformly distributed 256 bit value, but a hit also
+  *  requires the whole token to be equal to the one cached and the key to be the very same instance: a token that
+  *  reuses the HMAC of a cached one with any other byte changed is a miss, and is verified as usual. </p>
+  *
+  *  <p> Each entry expires at the timestamp of its token plus the time to live of the validator, exactly when the
+  *  token would start to be rejected as expired. The cache is split into <em>shards</em> independently locked
+  *  shards, each holding at most its share of <em>maximumSize</em> entries and evicting the least recently used one
+  *  beyond it. Expired entries are dropped when they are looked up, and every <em>sweepSeconds</em> a shard that is
+  *  written to also drops all its expired entries. </p>
+  *
+  *  <p> Payloads are shared by every hit on the same token, so they should be immutable. </p>
+  *
+  *  @param maximumSize
+  *    the maximum number of entries
+  *  @param shards
+  *    the number of shards, rounded up to a power of two
+  *  @param sweepSeconds
+  *    the minimum interval between two sweeps of the expired entries of a shard
+  *  @tparam A
+  *    the type of the payloads
+  */
+final class VerifiedTokenCache[A](
+    val maximumSize: Int = VerifiedTokenCache.DefaultMaximumSize,
+    val shards: Int = VerifiedTokenCache.DefaultShards,
+    val sweepSeconds: Long = VerifiedTokenCache.DefaultSweepSeconds
+) {
+
+  import VerifiedTokenCache._
+
+  require(maximumSize > 0, "maximum size must be positive")
+  require(shards > 0, "shards must be positive")
+
+  private val table: Array[Shard[A]] = {
+    val count = Integer.highestOneBit(shards - 1) << 1 max 1
+    Array.fill(count)(new Shard[A](math.max(1, maximumSize / count), sweepSeconds))
+  }
+
+  private val hits = new LongAdder
+  private val misses = new LongAdder
+
+  /** Look up the payload of a verified token.
+    *  @param key
+    *    the key the token must have been verified with
+    *  @param token
+    *    the token, of valid layout
+    *  @param now
+    *    the current time, in seconds since the epoch
+    *  @return
+    *    the cached payload, or None if the token was not verified with <em>key</em> or has expired since
+    */
+  def get(key: Key, token: TokenView, now: Long): Option[A] = {
+    val entry = find(key, token, now)
+    if (entry == null) None else Some(entry.payload)
+  }
+
+  private[validators] def find(key: Key, token: TokenView, now: Long): Entry[A] = {
+    val hash = TokenView.readLong(token.bytes, token.hmacOffset)
+    val entry = shard(hash).find(hash, now)
+    if (
+      entry != null && (entry.key eq key) && Arrays.equals(
+        entry.token,
+        0,
+        entry.token.length,
+        token.bytes,
+        token.offset,
+        token.offset + token.length
+      )
+    ) {
+      hits.increment()
+      entry
+    } else {
+      misses.increment()
+      null
+    }
+  }
+
+  /** Cache the payload of a token that passed verification.
+    *  @param key
+    *    the key the token was verified with
+    *  @param token
+    *    the token, copied into the cache
+    *  @param expiresAt
+    *    the first second, since the epoch, at which the token is expired
+    *  @param payload
+    *    the decrypted, deserialised payload of the token
+    *  @param now
+    *    the current time, in seconds since the epoch
+    */
+  def put(
+      key: Key,
+      token: TokenView,
+      expiresAt: Long,
+      payload: A,
+      now: Long
+  ): Unit =
+    if (expiresAt > now) {
+      val copy = Arrays.copyOfRange(
+        token.bytes,
+        token.offset,
+        token.offset + token.length
+      )
+      val hash = TokenView.readLong(copy, copy.length - signatureBytes)
+      shard(hash).put(hash, new Entry(key, copy, expiresAt, payload), now)
+    }
+
+  /** @return the number of entries, including the expired ones not dropped yet */
+  def size: Int = table.map(_.size).sum
+
+  def hitCount: Long = hits.sum
+
+  def missCount: Long = misses.sum
+
+  /** Drop every entry, e.g. after a key is revoked. */
+  def clear(): Unit = table.foreach(_.clear())
+
+  private def shard(hash: Long): Shard[A] =
+    table(((hash >>> 32) ^ hash).toInt & (table.length - 1))
+
+}
+
+object VerifiedTokenCache {
+
+  val DefaultMaximumSize: Int = 10000
+  val DefaultShards: Int = 16
+  val DefaultSweepSeconds: Long = 10
+
+  /** @return the first second at which a token issued at <em>timestampSeconds</em> outlives <em>timeToLive</em> */
+  def expiresAt(timestampSeconds: Long, timeToLiveSeconds: Long): Long =
+    if (timeToLiveSeconds > 0 && timestampSeconds > Long.MaxValue - timeToLiveSeconds)
+      Long.MaxValue
+    else timestampSeconds + timeToLiveSeconds
+
+  private[validators] final class Entry[A](
+      val key: Key,
+      val token: Array[Byte],
+      val expiresAt: Long,
+      val payload: A
+  )
+
+  private final class Shard[A](capacity: Int, sweepSeconds: Long) {
+
+    private val entries =
+      new java.util.LinkedHashMap[java.lang.Long, Entry[A]](16, 0.75f, true) {
+        override def removeEldestEntry(
+            eldest: java.util.Map.Entry[java.lang.Long, Entry[A]]
+        ): Boolean = size > capacity
+      }
+
+    private var nextSweep = Long.MinValue
+
+    def find(hash: Long, now: Long): Entry[A] = synchronized {
+      val entry = entries.get(hash)
+      if (entry == null || entry.expiresAt > now) entry
+      else {
+        entries.remove(hash)
+        null
+      }
+    }
+
+    def put(hash: Long, entry: Entry[A], now: Long): Unit = synchronized {
+      if (now >= nextSweep) {
+        nextSweep = now + sweepSeconds
+        entries.values.removeIf(_.expiresAt <= now)
+      }
+      entries.put(hash, entry)
+    }
+
+    def size: Int = synchronized(entries.size)
+
+    def clear(): Unit = synchronized(entries.clear())
+
+  }
+
+}
@@ -0,0 +1,59 @@
+package com.github.imcamilo.fernet
+
+import com.github.imcamilo.validators.StandardValidator
+import org.scalatest.wordspec.AnyWordSpec
+
+import java.nio.charset.StandardCharsets.UTF_8
+import java.util.concurrent.ForkJoinPool
+
+class BulkVerifierSpec extends AnyWordSpec {
+
+  import TokenSpec._
+
+  "bulk verification" should {
+
+    def key: Key = Key(DecrEncryptedKey).get
+    def validator = StandardValidator.validator
+
+    def tokens(k: Key, count: Int): IndexedSeq[String] = {
+      val batch =
+        Token.generateBatch(k, (0 until count).map(_.toString.getBytes(UTF_8)))
+      batch.iterator.toIndexedSeq
+    }
+
+    "report the outcome of each token in order" in {
+      val k = key
+      val forged = tokens(KeyRingSpec.newKey(), 1).head
+      val mixed = tokens(k, 10) ++ Vector("garbage", forged)
+      val result = BulkVerifier.validateAndDecrypt(k, validator, mixed)
+      assert(result.size == 12)
+      assert(result.validCount == 10)
+      (0 until 10).foreach(i => assert(result.payload(i) == i.toString))
+      assert(result.reason(10) == FailureReason.Malformed)
+      assert(result.reason(11) == FailureReason.SignatureMismatch)
+      assert(result.payload(11) == null)
+    }
+
+    "split large inputs across a pool" in {
+      val k = key
+      val all = tokens(k, 2000)
+      val pool = new ForkJoinPool(4)
+      try {
+        val result = BulkVerifier.validateAndDecrypt(k, validator, all, pool, 64)
+        assert(result.validCount == 2000)
+        assert(result.payload(1999) == "1999")
+      } finally pool.shutdown()
+    }
+
+    "verify against a key ring" in {
+      val old = KeyRingSpec.newKey()
+      val current = KeyRingSpec.newKey()
+      val ring = KeyRing(current, old)
+      val all = tokens(old, 5) ++ tokens(current, 5)
+      val result = BulkVerifier.validateAndDecrypt(ring, validator, all)
+      assert(result.validCount == 10)
+    }
+
+  }
+
+}
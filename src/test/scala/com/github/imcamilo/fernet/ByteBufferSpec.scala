@@ -0,0 +1,77 @@
+package com.github.imcamilo.fernet
+
+import com.github.imcamilo.validators.StandardValidator
+import org.scalatest.wordspec.AnyWordSpec
+
+import java.nio.{ByteBuffer, ByteOrder}
+import java.security.SecureRandom
+
+class ByteBufferSpec extends AnyWordSpec {
+
+  import TokenSpec._
+
+  "tokens held in direct buffers" should {
+
+    def key: Key = Key(DecrEncryptedKey).get
+    def validator = StandardValidator.validator
+    val random = new SecureRandom
+
+    "go from payload to plaintext without leaving the buffers" in {
+      val k = key
+      val payload = ByteBuffer.allocateDirect(100)
+      payload.put(KeySpec.randomBytes(100)).flip()
+      val expected = payload.duplicate
+      val token = ByteBuffer.allocateDirect(256)
+      val written = Token.generate(random, k, payload, token)
+      assert(written == Constants.tokenStaticBytes + 112)
+      token.flip()
+      val output = ByteBuffer.allocateDirect(112)
+      assert(Token.validateAndDecrypt(token, k, validator, output) == Right(100))
+      output.flip()
+      assert(output == expected)
+    }
+
+    "be interchangeable with serialised tokens" in {
+      val k = key
+      val token = Token.generate(k, Original)
+      val buffer =
+        ByteBuffer.allocateDirect(256).order(ByteOrder.LITTLE_ENDIAN)
+      Token.writeTo(buffer, token)
+      buffer.flip()
+      val read = Token.fromBuffer(buffer.duplicate).get
+      assert(Token.serialise(read) == Token.serialise(token))
+      val output = ByteBuffer.allocate(64)
+      assert(Token.validateAndDecrypt(buffer, k, validator, output).isRight)
+      assert(new String(output.array, 0, output.position(), "UTF-8") == Original)
+    }
+
+    "read a token at the position of a buffer and reject a malformed one" in {
+      val token = Token.generate(key, Original)
+      val buffer = ByteBuffer.allocateDirect(256)
+      buffer.position(5)
+      Token.writeTo(buffer, token)
+      buffer.flip().position(5)
+      val read = Token.fromBuffer(buffer).get
+      assert(buffer.position() == buffer.limit())
+      assert(read.hmac sameElements token.hmac)
+      assert(Token.serialise(read) == Token.serialise(token))
+      val short = ByteBuffer.allocate(20)
+      assert(Token.fromBuffer(short).isFailure)
+      assert(!short.hasRemaining)
+    }
+
+    "reject a tampered token" in {
+      val k = key
+      val token = ByteBuffer.allocateDirect(256)
+      Token.generate(random, k, ByteBuffer.wrap(Original.getBytes), token)
+      token.flip()
+      token.put(40, (token.get(40) ^ 1).toByte)
+      assert(
+        Token.validateAndDecrypt(token, k, validator, ByteBuffer.allocate(64)) ==
+          Left(FailureReason.SignatureMismatch)
+      )
+    }
+
+  }
+
+}
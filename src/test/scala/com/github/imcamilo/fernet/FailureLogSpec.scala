@@ -0,0 +1,37 @@
+package com.github.imcamilo.fernet
+
+import org.scalatest.wordspec.AnyWordSpec
+
+class FailureLogSpec extends AnyWordSpec {
+
+  "the failure log" should {
+
+    "count failures per reason between summaries" in {
+      FailureLog.setSummaryIntervalMillis(Long.MaxValue / 2)
+      try {
+        FailureLog.flush()
+        assert(TokenView.fromString("not a token").isEmpty)
+        assert(Token.fromString("AAAA").isEmpty)
+        assert(Key("dG9vIHNob3J0").isEmpty)
+        // not Base 64 at all: reported, not thrown
+        assert(Token.fromString("not a token!").isEmpty)
+        assert(Key("*" * 44).isEmpty)
+        assert(FailureLog.pending(FailureReason.Malformed) >= 3)
+        assert(FailureLog.pendingKeyFailures >= 2)
+      } finally FailureLog.setSummaryIntervalMillis(
+        FailureLog.DefaultSummaryIntervalMillis
+      )
+    }
+
+    "record nothing when disabled" in {
+      FailureLog.setEnabled(false)
+      try {
+        val before = FailureLog.pending(FailureReason.Malformed)
+        assert(TokenView.fromString("not a token").isEmpty)
+        assert(FailureLog.pending(FailureReason.Malformed) == before)
+      } finally FailureLog.setEnabled(true)
+    }
+
+  }
+
+}
@@ -0,0 +1,34 @@
+package com.github.imcamilo.fernet
+
+import org.scalatest.wordspec.AnyWordSpec
+
+import java.util.concurrent.ConcurrentHashMap
+
+class InitializationVectorSourceSpec extends AnyWordSpec {
+
+  "an initialization vector source" should {
+
+    "never hand out the same bytes twice, across threads and refills" in {
+      val source = new InitializationVectorSource(3, 64)
+      val seen = ConcurrentHashMap.newKeySet[String]()
+      val threads = (1 to 4).map { _ =>
+        new Thread(() =>
+          (1 to 500).foreach(_ => seen.add(source.next().mkString(",")))
+        )
+      }
+      threads.foreach(_.start())
+      threads.foreach(_.join())
+      assert(seen.size == 2000)
+    }
+
+    "fill slices longer than its buffer" in {
+      val source = new InitializationVectorSource(1, 16)
+      val bytes = new Array[Byte](100)
+      source.nextBytes(bytes, 2, 96)
+      assert(bytes(0) == 0 && bytes(1) == 0 && bytes(98) == 0 && bytes(99) == 0)
+      assert(bytes.slice(2, 98).exists(_ != 0))
+    }
+
+  }
+
+}
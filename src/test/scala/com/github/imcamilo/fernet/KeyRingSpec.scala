@@ -0,0 +1,65 @@
+package com.github.imcamilo.fernet
+
+import com.github.imcamilo.validators.StandardValidator
+import org.scalatest.wordspec.AnyWordSpec
+
+class KeyRingSpec extends AnyWordSpec {
+
+  import KeyRingSpec._
+  import TokenSpec._
+
+  "a key ring" should {
+
+    def validator = StandardValidator.validator
+
+    "report which key signed a token" in {
+      val keys = Vector.fill(3)(newKey())
+      val ring = new KeyRing(keys)
+      val token = Token.serialise(Token.generate(keys(2), Original))
+      val result = ring.validateAndDecrypt(token, validator)
+      assert(result.map(_.index) == Right(2))
+      assert(result.map(_.payload) == Right(Original))
+      assert(result.map(_.key eq keys(2)) == Right(true))
+    }
+
+    "generate tokens with the primary key" in {
+      val keys = Vector.fill(2)(newKey())
+      val ring = new KeyRing(keys)
+      val token = Token.serialise(ring.generate(Original))
+      assert(Token.validateAndDecrypt(token, keys(0), validator) == Right(Original))
+    }
+
+    "try the key with most recent hits first" in {
+      val keys = Vector.fill(3)(newKey())
+      val ring = new KeyRing(keys)
+      val token = Token.serialise(Token.generate(keys(2), Original))
+      (1 to 5).foreach(_ => ring.validateAndDecrypt(token, validator))
+      assert(ring.currentOrder.head == 2)
+    }
+
+    "reject tokens signed with none of its keys" in {
+      val ring = new KeyRing(Vector.fill(2)(newKey()))
+      val token = Token.serialise(Token.generate(newKey(), Original))
+      assert(
+        ring.validateAndDecrypt(token, validator) ==
+          Left(FailureReason.SignatureMismatch)
+      )
+    }
+
+    "search large rings in parallel" in {
+      val keys = Vector.fill(40)(newKey())
+      val ring = new KeyRing(keys, parallelThreshold = 8)
+      val token = Token.serialise(Token.generate(keys(33), Original))
+      assert(ring.validateAndDecrypt(token, validator).map(_.index) == Right(33))
+    }
+
+  }
+
+}
+
+object KeyRingSpec {
+
+  def newKey(): Key =
+    Key(Constants.encoder.encodeToString(KeySpec.randomBytes(32))).get
+
+}
@@ -0,0 +1,130 @@
+package com.github.imcamilo.fernet
+
+import org.scalatest.wordspec.AnyWordSpec
+
+import java.security.SecureRandom
+import java.time.Instant
+import javax.crypto.spec.IvParameterSpec
+import scala.annotation.nowarn
+
+class KeySpec extends AnyWordSpec {
+
+  import KeySpec._
+
+  "a key" should {
+
+    "be read from characters, ASCII slices and buffers" in {
+      val encoded = TokenSpec.DecrEncryptedKey
+      val expected = Key(encoded).get
+      val ascii = (" " + encoded + " ").getBytes("US-ASCII")
+      Seq(
+        Key(java.nio.CharBuffer.wrap(encoded.toCharArray)),
+        Key(ascii, 1, encoded.length),
+        Key(java.nio.ByteBuffer.wrap(ascii, 1, encoded.length))
+      ).foreach { key =>
+        assert(key.get.signingKey sameElements expected.signingKey)
+        assert(key.get.encryptionKey sameElements expected.encryptionKey)
+      }
+    }
+
+    "still fill the stream given to the deprecated sign" in {
+      val k = Key(TokenSpec.DecrEncryptedKey).get
+      val iv = new IvParameterSpec(randomBytes(16))
+      val cipherText = randomBytes(32)
+      val timestamp = Instant.ofEpochSecond(42L)
+      val stream = new java.io.ByteArrayOutputStream
+      @nowarn("cat=deprecation")
+      def signed =
+        Key.sign(0x80.toByte, timestamp, iv, cipherText, stream, k.signingKey)
+      assert(
+        signed sameElements Key
+          .sign(0x80.toByte, timestamp, iv, cipherText, k.signingKey)
+      )
+      assert(stream.size == 1 + 8 + 16 + 32)
+      assert(stream.toByteArray.slice(1, 9).last == 42)
+    }
+
+    "reject encodings that are not 256 bits" in {
+      val encoded = TokenSpec.DecrEncryptedKey
+      assert(Key(new java.lang.StringBuilder(encoded.substring(4))).isEmpty)
+      assert(Key(("*" + encoded.substring(1)).getBytes("US-ASCII"), 0, 44).isEmpty)
+    }
+
+  }
+
+  "a key context" should {
+
+    def key: Key = Key(TokenSpec.DecrEncryptedKey).get
+
+    "be created once per key" in {
+      val k = key
+      assert(KeyContext(k) eq k.context)
+    }
+
+    "encrypt and sign exactly like the static key functions" in {
+      val k = key
+      val iv = new IvParameterSpec(randomBytes(16))
+      val payload = randomBytes(100)
+      val cipherText = k.context.encrypt(payload, iv)
+      assert(
+        cipherText sameElements Key.encrypt(payload, iv, k.encryptionKey)
+      )
+      val now = Instant.now
+      assert(
+        k.context.sign(Constants.supportedVersion, now, iv, cipherText) sameElements
+          Key.sign(Constants.supportedVersion, now, iv, cipherText, k.signingKey)
+      )
+      assert(k.context.decrypt(cipherText, iv) sameElements payload)
+    }
+
+    "sign slices into a caller supplied array" in {
+      val k = key
+      val iv = randomBytes(16)
+      val cipherText = randomBytes(64)
+      val buffer = new Array[Byte](8 + 16 + 64 + 40)
+      System.arraycopy(iv, 0, buffer, 8, 16)
+      System.arraycopy(cipherText, 0, buffer, 24, 64)
+      val version = Constants.supportedVersion
+      k.context.sign(version, 42L, buffer, 8, buffer, 24, 64, buffer, 88)
+      val expected = Key.sign(
+        version,
+        Instant.ofEpochSecond(42L),
+        new IvParameterSpec(iv),
+        cipherText,
+        k.signingKey
+      )
+      assert(buffer.slice(88, 120) sameElements expected)
+      assert(
+        k.context
+          .isValidSignature(version, 42L, buffer, 8, buffer, 24, 64, buffer, 88)
+      )
+      assert(
+        !k.context
+          .isValidSignature(version, 43L, buffer, 8, buffer, 24, 64, buffer, 88)
+      )
+    }
+
+    "give each thread its own primitives" in {
+      val k = key
+      var other: javax.crypto.Mac = null
+      val thread = new Thread(() => other = k.context.mac)
+      thread.start()
+      thread.join()
+      assert(other != null && (other ne k.context.mac))
+    }
+
+  }
+
+}
+
+object KeySpec {
+
+  private val random = new SecureRandom
+
+  def randomBytes(length: Int): Array[Byte] = {
+    val bytes = new Array[Byte](length)
+    random.nextBytes(bytes)
+    bytes
+  }
+
+}
@@ -0,0 +1,87 @@
+package com.github.imcamilo.fernet
+
+import com.github.imcamilo.validators.{StringValidator, TokenCheck}
+import org.scalatest.wordspec.AnyWordSpec
+
+import java.time.{Clock, Instant, ZoneId, ZoneOffset}
+
+class NegativeCacheSpec extends AnyWordSpec {
+
+  "a negative cache" should {
+
+    "short-circuit a token it recently rejected" in {
+      val key = KeyRingSpec.newKey()
+      val validator = new StringValidator {}
+      val cache = new NegativeCache
+      val forged = Token.serialise(Token.generate(KeyRingSpec.newKey(), "hello"))
+      assert(cache.get(forged) == null)
+      assert(
+        cache.validateAndDecrypt(forged, key, validator) ==
+          Left(FailureReason.SignatureMismatch)
+      )
+      assert(cache.get(forged) == FailureReason.SignatureMismatch)
+      assert(
+        cache.validateAndDecrypt("AAAA", key, validator) ==
+          Left(FailureReason.Malformed)
+      )
+      assert(cache.get("AAAA") == FailureReason.Malformed)
+    }
+
+    "neither cache accepted tokens nor keep rejections past the retention" in {
+      val key = KeyRingSpec.newKey()
+      val validator = new StringValidator {}
+      val cache = new NegativeCache(capacity = 16, retentionMillis = 0)
+      val token = Token.serialise(Token.generate(key, "hello"))
+      assert(cache.validateAndDecrypt(token, key, validator) == Right("hello"))
+      assert(cache.get(token) == null)
+      cache.put("AAAA", FailureReason.Malformed)
+      assert(cache.get("AAAA") == null)
+    }
+
+    "not cache tokens from the future" in {
+      val cache = new NegativeCache
+      cache.put("AAAA", FailureReason.FutureTimestamp)
+      assert(cache.get("AAAA") == null)
+    }
+
+    "not cache rejections that depend on the state of the server" in {
+      val cache = new NegativeCache
+      cache.put("AAAA", FailureReason.ReplayStoreFull)
+      assert(cache.get("AAAA") == null)
+      cache.put("AAAA", FailureReason.Replayed)
+      assert(cache.get("AAAA") == FailureReason.Replayed)
+    }
+
+    "accept a token once a full replay store has room again" in {
+      val key = KeyRingSpec.newKey()
+      val now = Instant.now
+      class SettableClock extends Clock {
+        @volatile var instant: Instant = now
+        override def getZone: ZoneId = ZoneOffset.UTC
+        override def withZone(zone: ZoneId): Clock = this
+      }
+      val clock = new SettableClock
+      class ClockedValidator extends StringValidator {
+        val store = new ReplayStore(1, this)
+        override def getClock: Clock = clock
+        override def getTokenChecks: Seq[TokenCheck] = Seq(store)
+      }
+      val validator = new ClockedValidator
+      val store = validator.store
+      // fill both slots of the store with tokens expiring in a second
+      val seconds = now.getEpochSecond
+      store.markUsed(KeySpec.randomBytes(32), 0, seconds + 1, seconds)
+      store.markUsed(KeySpec.randomBytes(32), 0, seconds + 1, seconds)
+      val cache = new NegativeCache
+      val token = Token.serialise(Token.generate(key, "once"))
+      assert(
+        cache.validateAndDecrypt(token, key, validator) ==
+          Left(FailureReason.ReplayStoreFull)
+      )
+      clock.instant = now.plusSeconds(1)
+      assert(cache.validateAndDecrypt(token, key, validator) == Right("once"))
+    }
+
+  }
+
+}
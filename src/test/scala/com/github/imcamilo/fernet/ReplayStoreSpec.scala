@@ -0,0 +1,123 @@
+package com.github.imcamilo.fernet
+
+import com.github.imcamilo.validators.{StringValidator, TokenCheck}
+import org.scalatest.wordspec.AnyWordSpec
+
+import java.time.Duration
+import java.time.temporal.TemporalAmount
+import java.util.concurrent.atomic.{AtomicInteger, AtomicIntegerArray}
+import java.util.stream.IntStream
+
+class ReplayStoreSpec extends AnyWordSpec {
+
+  private val validator = new StringValidator {}
+
+  /** Spin until <em>counter</em> reaches <em>value</em>, yielding after a while in case the other thread is not on a
+    *  core.
+    */
+  private def awaitAtLeast(counter: AtomicInteger, value: Int): Unit = {
+    var spins = 0
+    while (counter.get < value) {
+      if (spins < 1000) Thread.onSpinWait() else Thread.`yield`()
+      spins += 1
+    }
+  }
+
+  "a replay store" should {
+
+    "accept a token once and reject its replays" in {
+      val key = KeyRingSpec.newKey()
+      val validator = new StringValidator {
+        val store = new ReplayStore(1024, this)
+        override def getTokenChecks: Seq[TokenCheck] = Seq(store)
+      }
+      val token = Token.generate(key, "reset")
+      assert(validator.validate(key, token) == Right("reset"))
+      assert(validator.validate(key, token) == Left(FailureReason.Replayed))
+      val serialised = Token.serialise(token)
+      assert(
+        Token.validateAndDecrypt(serialised, key, validator) ==
+          Left(FailureReason.Replayed)
+      )
+      assert(validator.validate(key, Token.generate(key, "other")) == Right("other"))
+    }
+
+    "remember a token for as long as its validator accepts it" in {
+      val key = KeyRingSpec.newKey()
+      class HourValidator extends StringValidator {
+        val store = new ReplayStore(1024, this)
+        override def getTimeToLive: TemporalAmount = Duration.ofHours(1)
+        override def getTokenChecks: Seq[TokenCheck] = Seq(store)
+      }
+      val validator = new HourValidator
+      val token = Token.generate(key, "reset")
+      assert(validator.validate(key, token) == Right("reset"))
+      val issued = token.timestamp.getEpochSecond
+      assert(validator.store.isUsed(token.hmac, 0, issued + 3599))
+      assert(!validator.store.isUsed(token.hmac, 0, issued + 3600))
+    }
+
+    "reclaim the slots of expired tokens" in {
+      val store = new ReplayStore(1, validator)
+      assert(store.slots == 2)
+      val hmac = KeySpec.randomBytes(32)
+      assert(store.markUsed(hmac, 0, 100, 50) == null)
+      assert(store.markUsed(KeySpec.randomBytes(32), 0, 100, 50) == null)
+      assert(store.isUsed(hmac, 0, 99))
+      assert(!store.isUsed(hmac, 0, 100))
+      val late = KeySpec.randomBytes(32)
+      assert(store.markUsed(late, 0, 200, 60) == FailureReason.ReplayStoreFull)
+      assert(store.markUsed(late, 0, 200, 100) == null)
+      assert(store.markUsed(late, 0, 200, 101) == FailureReason.Replayed)
+    }
+
+    "let exactly one of many concurrent uses through" in {
+      val store = new ReplayStore(1 << 16, validator)
+      val hmacs = (0 until 1000).map(_ => KeySpec.randomBytes(32))
+      val accepted = new AtomicInteger
+      IntStream.range(0, 8000).parallel().forEach { i =>
+        if (store.markUsed(hmacs(i % 1000), 0, 200, 100) == null)
+          accepted.incrementAndGet()
+      }
+      assert(accepted.get == 1000)
+    }
+
+    "never accept a token twice when callers straddle a clock tick" in {
+      val rounds = 5000
+      val stores = Array.fill(rounds)(new ReplayStore(4, validator))
+      val tokens = Array.fill(rounds) {
+        val expiring = KeySpec.randomBytes(32)
+        // same home slot, different digests
+        val token = expiring.clone()
+        token(0) = (token(0) ^ 1).toByte
+        (expiring, token)
+      }
+      (0 until rounds).foreach { round =>
+        assert(stores(round).markUsed(tokens(round)._1, 0, 1000, 500) == null)
+      }
+      val accepted = new AtomicIntegerArray(rounds)
+      val ready = new AtomicInteger
+      val threads = Seq(1000L, 999L).map { now =>
+        new Thread(() => {
+          ready.incrementAndGet()
+          var round = 0
+          while (round < rounds) {
+            // both threads take each round at about the same time
+            awaitAtLeast(ready, 2 + round * 2)
+            if (stores(round).markUsed(tokens(round)._2, 0, 5000, now) == null)
+              accepted.incrementAndGet(round)
+            ready.incrementAndGet()
+            round += 1
+          }
+        })
+      }
+      threads.foreach(_.start())
+      threads.foreach(_.join())
+      (0 until rounds).foreach { round =>
+        assert(accepted.get(round) <= 1, "round " + round)
+      }
+    }
+
+  }
+
+}
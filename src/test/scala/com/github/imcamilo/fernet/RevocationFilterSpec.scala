@@ -0,0 +1,129 @@
+package com.github.imcamilo.fernet
+
+import com.github.imcamilo.validators.{StringValidator, TokenCheck}
+import org.scalatest.wordspec.AnyWordSpec
+
+import java.nio.channels.OverlappingFileLockException
+import java.nio.file.{Files, NoSuchFileException}
+import java.util.concurrent.atomic.AtomicInteger
+import scala.jdk.CollectionConverters._
+import scala.util.Using
+
+class RevocationFilterSpec extends AnyWordSpec {
+
+  "a revocation filter" should {
+
+    "reject revoked tokens before decrypting them" in {
+      val file = Files.createTempFile("revoked", ".bin")
+      Files.delete(file)
+      val filter = RevocationFilter.open(file, capacity = 128)
+      try {
+        val key = KeyRingSpec.newKey()
+        val validator = new StringValidator {
+          override def getTokenChecks: Seq[TokenCheck] = Seq(filter)
+        }
+        val revoked = Token.generate(key, "revoked")
+        val kept = Token.generate(key, "kept")
+        assert(filter.revoke(revoked))
+        assert(!filter.revoke(revoked))
+        assert(filter.size == 1)
+        assert(validator.validate(key, revoked) == Left(FailureReason.Revoked))
+        assert(validator.validate(key, kept) == Right("kept"))
+        val serialised = Token.serialise(revoked)
+        assert(
+          Token.validateAndDecrypt(serialised, key, validator) ==
+            Left(FailureReason.Revoked)
+        )
+        val view = TokenView.fromString(serialised).get
+        assert(validator.validate(key, view) == Left(FailureReason.Revoked))
+      } finally {
+        filter.close()
+        Files.deleteIfExists(file)
+      }
+    }
+
+    "share revocations with other mappings of the file" in {
+      val file = Files.createTempFile("revoked", ".bin")
+      Files.delete(file)
+      val writer = RevocationFilter.open(file, capacity = 64)
+      val reader = RevocationFilter.openReadOnly(file)
+      try {
+        val key = KeyRingSpec.newKey()
+        val tokens = (1 to 64).map(i => Token.generate(key, "p" + i))
+        tokens.take(32).foreach(writer.revoke)
+        assert(tokens.take(32).forall(reader.isRevoked))
+        assert(!tokens.drop(32).exists(reader.isRevoked))
+        assert(reader.capacity == 64)
+        assertThrows[IllegalStateException](reader.revoke(tokens.last))
+        tokens.drop(32).foreach(writer.revoke)
+        assertThrows[IllegalStateException](
+          writer.revoke(Token.generate(key, "one too many"))
+        )
+      } finally {
+        reader.close()
+        writer.close()
+        Files.deleteIfExists(file)
+      }
+    }
+
+    "let several instances on the same file revoke concurrently" in {
+      val file = Files.createTempFile("revoked", ".bin")
+      Files.delete(file)
+      val filters = Seq.fill(4)(RevocationFilter.open(file, capacity = 8192))
+      try {
+        val hmacs = (0 until 8000).map(_ => KeySpec.randomBytes(32))
+        val failures = new AtomicInteger
+        val threads = filters.zipWithIndex.map {
+          case (filter, i) =>
+            new Thread(() =>
+              (i until hmacs.length by filters.length).foreach { j =>
+                try filter.revoke(hmacs(j), 0)
+                catch { case _: OverlappingFileLockException => failures.incrementAndGet() }
+              }
+            )
+        }
+        threads.foreach(_.start())
+        threads.foreach(_.join())
+        assert(failures.get == 0)
+        assert(filters.forall(_.size == hmacs.length))
+        assert(hmacs.forall(filters.head.isRevoked(_, 0)))
+      } finally {
+        filters.foreach(_.close())
+        Files.deleteIfExists(file)
+      }
+    }
+
+    "never show a reader a file without its header" in {
+      val directory = Files.createTempDirectory("revoked")
+      try {
+        (0 until 50).foreach { round =>
+          val file = directory.resolve("filter" + round + ".bin")
+          val writer = new Thread(() => RevocationFilter.open(file, 4096).close())
+          writer.start()
+          var reader: RevocationFilter = null
+          while (reader == null)
+            try reader = RevocationFilter.openReadOnly(file)
+            catch {
+              case _: NoSuchFileException => Thread.`yield`()
+            }
+          writer.join()
+          assert(reader.capacity == 4096)
+          reader.close()
+        }
+        // an empty file, e.g. made by touch, is initialised
+        val placeholder = Files.createFile(directory.resolve("placeholder.bin"))
+        RevocationFilter.open(placeholder, 16).close()
+        val initialised = RevocationFilter.openReadOnly(placeholder)
+        try assert(initialised.capacity == 16)
+        finally initialised.close()
+        Using(Files.list(directory)) { files =>
+          assert(files.iterator.asScala.forall(_.toString.endsWith(".bin")))
+        }.get
+      } finally
+        Using(Files.list(directory))(_.iterator.asScala.foreach(Files.delete)).get
+      Files.delete(directory)
+    }
+
+  }
+
+}
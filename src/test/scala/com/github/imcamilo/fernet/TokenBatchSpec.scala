@@ -0,0 +1,50 @@
+package com.github.imcamilo.fernet
+
+import com.github.imcamilo.validators.StandardValidator
+import org.scalatest.wordspec.AnyWordSpec
+
+import java.nio.charset.StandardCharsets.UTF_8
+
+class TokenBatchSpec extends AnyWordSpec {
+
+  import TokenSpec._
+
+  "a batch of tokens" should {
+
+    def key: Key = Key(DecrEncryptedKey).get
+    def validator = StandardValidator.validator
+
+    "hold one valid token per payload, in order" in {
+      val k = key
+      val payloads = (0 until 40).map(i => ("x" * i).getBytes(UTF_8))
+      val batch = Token.generateBatch(k, payloads)
+      assert(batch.size == payloads.size)
+      payloads.indices.foreach { i =>
+        assert(
+          Token.validateAndDecrypt(batch(i), k, validator) ==
+            Right(new String(payloads(i), UTF_8))
+        )
+      }
+    }
+
+    "be serialised like single tokens" in {
+      val k = key
+      val batch = Token.generateBatch(k, Vector(Original.getBytes(UTF_8)))
+      val token = Token.fromString(batch(0)).get
+      assert(Token.serialise(token) == batch(0))
+      assert(batch.length(0) == batch.bytes.length)
+    }
+
+    "split large batches across threads" in {
+      val k = key
+      val payloads = (0 until 1000).map(i => i.toString.getBytes(UTF_8))
+      val batch = Token.generateBatch(k, payloads)
+      val decrypted =
+        batch.iterator.map(Token.validateAndDecrypt(_, k, validator)).toVector
+      assert(decrypted == payloads.map(p => Right(new String(p, UTF_8))))
+      assert(batch.iterator.toSet.size == payloads.size)
+    }
+
+  }
+
+}
@@ -1,8 +1,10 @@
 package com.github.imcamilo.fernet
 
-import com.github.imcamilo.validators.StandardValidator
+import com.github.imcamilo.validators.{StandardValidator, StringValidator}
 import org.scalatest.wordspec.AnyWordSpec
 
+import java.time.{Clock, Duration}
+
 class TokenSpec extends AnyWordSpec {
 
   import TokenSpec._
@@ -42,6 +44,127 @@ class TokenSpec extends AnyWordSpec {
 
   }
 
+  "when a token string is validated and decrypted in one pass the lib " should {
+
+    def key: Key = Key(DecrEncryptedKey).get
+    def validator = StandardValidator.validator
+
+    "return the payload of a valid token" in {
+      val k = key
+      val serialised = Token.serialise(Token.generate(k, Original))
+      assert(Token.validateAndDecrypt(serialised, k, validator) == Right(Original))
+    }
+
+    "report why a token was rejected" in {
+      val k = key
+      val serialised = Token.serialise(Token.generate(k, Original))
+      val other = Key(HackEncryptedKey.take(44)).get
+      assert(
+        Token.validateAndDecrypt(serialised, other, validator) ==
+          Left(FailureReason.SignatureMismatch)
+      )
+      assert(
+        Token.validateAndDecrypt("%%%", k, validator) ==
+          Left(FailureReason.Malformed)
+      )
+      val bytes = Constants.decoder.decode(serialised)
+      bytes(0) = 0x81.toByte
+      assert(
+        Token.validateAndDecrypt(bytes, 0, bytes.length, k, validator) ==
+          Left(FailureReason.BadVersion)
+      )
+    }
+
+    "reject expired tokens and tokens from the future" in {
+      val k = key
+      val expiring = new StringValidator {
+        override def getTimeToLive = Duration.ofSeconds(1)
+        override def getClock =
+          Clock.offset(Clock.systemUTC, Duration.ofSeconds(5))
+      }
+      val serialised = Token.serialise(Token.generate(k, Original))
+      assert(
+        Token.validateAndDecrypt(serialised, k, expiring) ==
+          Left(FailureReason.Expired)
+      )
+      val lagging = new StringValidator {
+        override def getClock =
+          Clock.offset(Clock.systemUTC, Duration.ofSeconds(-120))
+      }
+      assert(
+        Token.validateAndDecrypt(serialised, k, lagging) ==
+          Left(FailureReason.FutureTimestamp)
+      )
+    }
+
+  }
+
+  "when a token is generated straight into its serialised form the lib " should {
+
+    def key: Key = Key(DecrEncryptedKey).get
+    def validator = StandardValidator.validator
+
+    "produce tokens that decode like serialised ones" in {
+      val k = key
+      (0 to 48).foreach { size =>
+        val payload = "y" * size
+        val serialised = Token.generateString(k, payload)
+        val token = Token.fromString(serialised).get
+        assert(Token.serialise(token) == serialised)
+        assert(token.isValidSignature(k))
+        assert(Token.validateAndDecrypt(serialised, k, validator) == Right(payload))
+      }
+    }
+
+    "encode a token into a caller's array or buffer" in {
+      val token = Token.generate(key, Original)
+      val serialised = Token.serialise(token)
+      val length = Token.encodedLength(token)
+      assert(length == serialised.length)
+      assert(Token.encodedLength(Original.length) == length)
+
+      val array = new Array[Byte](length + 5)
+      assert(Token.encodeInto(token, array, 3) == length)
+      assert(new String(array, 3, length, "US-ASCII") == serialised)
+      assertThrows[IllegalArgumentException](Token.encodeInto(token, array, 6))
+
+      Seq(
+        java.nio.ByteBuffer.allocate(length + 5),
+        java.nio.ByteBuffer.allocateDirect(length + 5)
+      ).foreach { buffer =>
+        buffer.position(2)
+        assert(Token.encodeInto(token, buffer) == length)
+        assert(buffer.position() == length + 2)
+        val encoded = new Array[Byte](length)
+        buffer.position(2)
+        buffer.get(encoded)
+        assert(new String(encoded, "US-ASCII") == serialised)
+      }
+    }
+
+    "decode padded and unpadded encodings like the JDK decoder" in {
+      (0 to 20).foreach { size =>
+        val raw = KeySpec.randomBytes(size)
+        val padded = java.util.Base64.getUrlEncoder.encodeToString(raw)
+        val unpadded = padded.replace("=", "")
+        Seq(padded, unpadded).foreach { encoded =>
+          val dst = new Array[Byte](size)
+          assert(Base64Url.decode(encoded, dst, 0) == size, encoded)
+          assert(dst.toSeq == raw.toSeq, encoded)
+        }
+      }
+    }
+
+    "encode a token in place over its own bytes" in {
+      val raw = KeySpec.randomBytes(100)
+      val expected = java.util.Base64.getUrlEncoder.encode(raw)
+      val inPlace = java.util.Arrays.copyOf(raw, Base64Url.encodedLength(raw.length))
+      assert(Base64Url.encode(inPlace, 0, raw.length, inPlace, 0) == expected.length)
+      assert(inPlace.toSeq == expected.toSeq)
+    }
+
+  }
+
 }
 
 object TokenSpec {
@@ -0,0 +1,137 @@
+package com.github.imcamilo.fernet
+
+import com.github.imcamilo.validators.Validator
+import org.scalatest.wordspec.AnyWordSpec
+
+import java.io.{ByteArrayInputStream, ByteArrayOutputStream, IOException, InputStream, OutputStream}
+import java.nio.channels.Channels
+import java.nio.charset.StandardCharsets.US_ASCII
+import java.security.SecureRandom
+
+class TokenStreamSpec extends AnyWordSpec {
+
+  private val bytesValidator = new Validator[Array[Byte]] {
+    override def getTransformer: Array[Byte] => Array[Byte] = bytes => bytes
+  }
+
+  "a streamed token" should {
+
+    "round trip payloads of any size" in {
+      val key = KeyRingSpec.newKey()
+      Seq(0, 1, 15, 16, 8191, 8192, 8193, 100000).foreach { size =>
+        val payload = KeySpec.randomBytes(size)
+        val output = new ByteArrayOutputStream
+        val written = Token.generate(key, new ByteArrayInputStream(payload), output)
+        val serialised = new String(output.toByteArray, US_ASCII)
+        assert(written == serialised.length)
+        val decrypted = Token.validateAndDecrypt(serialised, key, bytesValidator)
+        assert(decrypted.map(_.toSeq) == Right(payload.toSeq), "size " + size)
+      }
+    }
+
+    "read from a channel and leave the output open" in {
+      val key = KeyRingSpec.newKey()
+      val payload = "streamed".getBytes(US_ASCII)
+      class TrackedOutputStream extends ByteArrayOutputStream {
+        var closed = false
+        override def close(): Unit = closed = true
+      }
+      val output = new TrackedOutputStream
+      val channel = Channels.newChannel(new ByteArrayInputStream(payload))
+      Token.generate(new SecureRandom, key, channel, output)
+      assert(!output.closed)
+      val serialised = new String(output.toByteArray, US_ASCII)
+      val token = Token.fromString(serialised).get
+      assert(token.isValidSignature(key))
+      assert(
+        Token.validateAndDecrypt(serialised, key, bytesValidator)
+          .map(new String(_, US_ASCII)) == Right("streamed")
+      )
+    }
+
+  }
+
+  "a streamed verification" should {
+
+    "decrypt payloads of any size into the output" in {
+      val key = KeyRingSpec.newKey()
+      Seq(0, 1, 16, 8192, 8193, 100000).foreach { size =>
+        val payload = KeySpec.randomBytes(size)
+        val token = new ByteArrayOutputStream
+        Token.generate(key, new ByteArrayInputStream(payload), token)
+        val output = new ByteArrayOutputStream
+        val result = Token.validateAndDecrypt(
+          new ByteArrayInputStream(token.toByteArray),
+          key,
+          bytesValidator,
+          output
+        )
+        assert(result == Right(size.toLong), "size " + size)
+        assert(output.toByteArray.toSeq == payload.toSeq, "size " + size)
+      }
+    }
+
+    "write nothing for a token signed with another key" in {
+      val token = new ByteArrayOutputStream
+      val payload = KeySpec.randomBytes(20000)
+      Token.generate(KeyRingSpec.newKey(), new ByteArrayInputStream(payload), token)
+      val output = new ByteArrayOutputStream
+      val result = Token.validateAndDecrypt(
+        Channels.newChannel(new ByteArrayInputStream(token.toByteArray)),
+        KeyRingSpec.newKey(),
+        bytesValidator,
+        output
+      )
+      assert(result == Left(FailureReason.SignatureMismatch))
+      assert(output.size == 0)
+    }
+
+    "reject malformed input" in {
+      val key = KeyRingSpec.newKey()
+      val token = new ByteArrayOutputStream
+      Token.generate(key, new ByteArrayInputStream(KeySpec.randomBytes(100)), token)
+      val serialised = new String(token.toByteArray, US_ASCII)
+      Seq(
+        "",
+        "not base 64!",
+        serialised.substring(0, 40),
+        serialised.substring(0, serialised.length - 24)
+      ).foreach { input =>
+        val result = Token.validateAndDecrypt(
+          new ByteArrayInputStream(input.getBytes(US_ASCII)),
+          key,
+          bytesValidator,
+          new ByteArrayOutputStream
+        )
+        assert(result.isLeft, input)
+      }
+      // the Mac of the thread is left clean by a rejection
+      assert(
+        Token.validateAndDecrypt(serialised, key, bytesValidator).map(_.length) == Right(100)
+      )
+    }
+
+    "propagate errors reading the input or writing the output" in {
+      val key = KeyRingSpec.newKey()
+      val token = new ByteArrayOutputStream
+      Token.generate(key, new ByteArrayInputStream(KeySpec.randomBytes(100)), token)
+      val full = new OutputStream {
+        override def write(b: Int): Unit = throw new IOException("disk full")
+        override def write(b: Array[Byte], off: Int, len: Int): Unit = throw new IOException("disk full")
+      }
+      val writing = intercept[IOException](
+        Token.validateAndDecrypt(new ByteArrayInputStream(token.toByteArray), key, bytesValidator, full)
+      )
+      assert(writing.getMessage == "disk full")
+      val broken = new InputStream {
+        override def read(): Int = throw new IOException("connection reset")
+      }
+      val reading = intercept[IOException](
+        Token.validateAndDecrypt(broken, key, bytesValidator, new ByteArrayOutputStream)
+      )
+      assert(reading.getMessage == "connection reset")
+    }
+
+  }
+
+}
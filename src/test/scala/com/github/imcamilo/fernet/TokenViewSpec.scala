@@ -0,0 +1,131 @@
+package com.github.imcamilo.fernet
+
+import com.github.imcamilo.validators.StandardValidator
+import org.scalatest.wordspec.AnyWordSpec
+
+class TokenViewSpec extends AnyWordSpec {
+
+  import TokenSpec._
+
+  "a token view" should {
+
+    def key: Key = Key(DecrEncryptedKey).get
+    def validator = StandardValidator.validator
+    def decode(token: Token) = Constants.decoder.decode(Token.serialise(token))
+
+    "expose the same fields as the token it was serialised from" in {
+      val token = Token.generate(key, Original)
+      val view = TokenView.fromString(Token.serialise(token)).get
+      assert(view.version == token.version)
+      assert(view.timestampSeconds == token.timestamp.getEpochSecond)
+      assert(view.cipherTextLength == token.cipherText.length)
+      assert(
+        view.bytes.slice(view.hmacOffset, view.length) sameElements token.hmac
+      )
+      assert(view.toToken.cipherText sameElements token.cipherText)
+    }
+
+    "verify and decrypt in place" in {
+      val k = key
+      val serialised = Token.serialise(Token.generate(k, Original))
+      val view = TokenView.fromString(serialised).get
+      assert(view.isValidSignature(k))
+      assert(view.validateAndDecrypt(k, validator).contains(Original))
+    }
+
+    "read a token from a slice of a larger array" in {
+      val k = key
+      val bytes = decode(Token.generate(k, Original))
+      val padded = new Array[Byte](bytes.length + 10)
+      System.arraycopy(bytes, 0, padded, 7, bytes.length)
+      val view = TokenView.fromBytes(padded, 7, bytes.length).get
+      assert(view.validateAndDecrypt(k, validator).contains(Original))
+    }
+
+    "reject a tampered token" in {
+      val k = key
+      val bytes = decode(Token.generate(k, Original))
+      bytes(30) = (bytes(30) ^ 1).toByte
+      val view = TokenView.fromBytes(bytes).get
+      assert(!view.isValidSignature(k))
+      assert(view.validateAndDecrypt(k, validator).isEmpty)
+    }
+
+    "reject malformed input" in {
+      assert(TokenView.fromBytes(new Array[Byte](10)).isFailure)
+      assert(TokenView.fromString("not a token").isEmpty)
+    }
+
+    "decrypt the payload over its cipher text and zero the token on close" in {
+      val k = key
+      val bytes = decode(Token.generate(k, Original))
+      val padded = new Array[Byte](bytes.length + 10)
+      System.arraycopy(bytes, 0, padded, 7, bytes.length)
+      val plainText =
+        Token.decryptInPlace(padded, 7, bytes.length, k, validator).toOption.get
+      assert(plainText.bytes eq padded)
+      assert(plainText.toString(Constants.charset) == Original)
+      assert(plainText(0) == Original.charAt(0).toByte)
+      plainText.close()
+      assert(plainText.isClosed)
+      assert(padded.forall(_ == 0))
+      assertThrows[IllegalStateException](plainText.toArray)
+      assertThrows[IllegalStateException](plainText(0))
+      assertThrows[IllegalStateException](plainText.asBuffer)
+    }
+
+    "leave a rejected token untouched" in {
+      val bytes = decode(Token.generate(KeyRingSpec.newKey(), Original))
+      val copy = bytes.clone()
+      val view = TokenView.fromBytes(bytes).get
+      assert(
+        view.decryptInPlace(key, validator) == Left(FailureReason.SignatureMismatch)
+      )
+      assert(bytes sameElements copy)
+    }
+
+    "decode from characters, ASCII slices and buffers into a reused array" in {
+      val k = key
+      val serialised = Token.serialise(Token.generate(k, Original))
+      val ascii = ("Cookie: " + serialised + ";").getBytes("US-ASCII")
+      val dst = new Array[Byte](256)
+      val views = Seq(
+        TokenView.decode(java.nio.CharBuffer.wrap(serialised), dst),
+        TokenView.decode(new java.lang.StringBuilder(serialised), dst),
+        TokenView.decode(ascii, 8, serialised.length, dst),
+        TokenView.decode(
+          java.nio.ByteBuffer
+            .allocateDirect(ascii.length)
+            .put(ascii)
+            .position(8)
+            .limit(8 + serialised.length),
+          dst
+        )
+      )
+      views.foreach { decoded =>
+        val view = decoded.toOption.get
+        assert(view.bytes eq dst)
+        assert(view.validateAndDecrypt(k, validator).contains(Original))
+      }
+    }
+
+    "reject encodings of the wrong length or with illegal characters" in {
+      val serialised = Token.serialise(Token.generate(key, Original))
+      val dst = new Array[Byte](256)
+      Seq(
+        "",
+        serialised.substring(1),
+        serialised.substring(0, 40),
+        serialised.replace('A', '+') + "AAAA",
+        "!" + serialised.substring(1)
+      ).foreach { input =>
+        assert(TokenView.decode(input, dst) == Left(FailureReason.Malformed), input)
+      }
+      assert(
+        TokenView.decode(serialised, new Array[Byte](10)) == Left(FailureReason.Malformed)
+      )
+    }
+
+  }
+
+}
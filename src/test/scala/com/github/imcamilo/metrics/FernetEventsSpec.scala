@@ -0,0 +1,49 @@
+package com.github.imcamilo.metrics
+
+import com.github.imcamilo.fernet.{KeyRingSpec, Token}
+import com.github.imcamilo.validators.StringValidator
+import jdk.jfr.Recording
+import jdk.jfr.consumer.RecordingFile
+import org.scalatest.wordspec.AnyWordSpec
+
+import java.nio.file.Files
+import scala.jdk.CollectionConverters._
+
+class FernetEventsSpec extends AnyWordSpec {
+
+  "the flight recorder events" should {
+
+    "be recorded for slow operations, here every operation" in {
+      val recording = new Recording
+      Seq("TokenGenerate", "TokenDecode", "TokenVerify").foreach { name =>
+        recording
+          .enable("com.github.imcamilo.fernet." + name)
+          .withThreshold(java.time.Duration.ZERO)
+      }
+      val file = Files.createTempFile("fernet", ".jfr")
+      try {
+        recording.start()
+        val key = KeyRingSpec.newKey()
+        val serialised = Token.serialise(Token.generate(key, "hello"))
+        val token = Token.fromString(serialised).get
+        val validator = new StringValidator {}
+        assert(token.validateAndDecrypt(key, validator).contains("hello"))
+        recording.stop()
+        recording.dump(file)
+        val events = RecordingFile.readAllEvents(file).asScala
+        def named(name: String) =
+          events.filter(_.getEventType.getName.endsWith(name))
+        assert(named("TokenGenerate").exists(_.getInt("payloadSize") == 5))
+        assert(named("TokenDecode").exists(_.getBoolean("valid")))
+        assert(named("TokenVerify").exists { event =>
+          event.getBoolean("valid") && event.getInt("cipherTextLength") == 16
+        })
+      } finally {
+        recording.close()
+        Files.deleteIfExists(file)
+      }
+    }
+
+  }
+
+}
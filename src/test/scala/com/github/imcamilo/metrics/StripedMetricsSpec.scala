@@ -0,0 +1,54 @@
+package com.github.imcamilo.metrics
+
+import com.github.imcamilo.fernet.{FailureReason, KeyRingSpec, Token}
+import com.github.imcamilo.validators.StringValidator
+import org.scalatest.wordspec.AnyWordSpec
+
+class StripedMetricsSpec extends AnyWordSpec {
+
+  "striped metrics" should {
+
+    "record latencies, outcomes and token ages once installed" in {
+      val metrics = new StripedMetrics
+      FernetMetrics.set(metrics)
+      try {
+        val key = KeyRingSpec.newKey()
+        val validator = new StringValidator {}
+        val serialised = Token.serialise(Token.generate(key, "hello"))
+        assert(Token.validateAndDecrypt(serialised, key, validator) == Right("hello"))
+        assert(
+          Token.validateAndDecrypt(serialised, KeyRingSpec.newKey(), validator) ==
+            Left(FailureReason.SignatureMismatch)
+        )
+        val snapshot = metrics.snapshot
+        assert(snapshot.latencies(Stage.Generate).count >= 1)
+        assert(snapshot.latencies(Stage.VerifySignature).count >= 2)
+        assert(snapshot.latencies(Stage.Decrypt).count >= 1)
+        assert(snapshot.latencies(Stage.Transform).count >= 1)
+        assert(snapshot.successes >= 1)
+        assert(snapshot.failures(FailureReason.SignatureMismatch) >= 1)
+        assert(snapshot.tokenAges.count + snapshot.futureTokens >= 2)
+      } finally FernetMetrics.set(FernetMetrics.NoOp)
+    }
+
+    "bucket values by power of two" in {
+      val metrics = new StripedMetrics
+      metrics.recordLatency(Stage.Decode, 0)
+      metrics.recordLatency(Stage.Decode, 5)
+      metrics.recordLatency(Stage.Decode, 1000)
+      metrics.recordTokenAge(-1)
+      val snapshot = metrics.snapshot
+      val decode = snapshot.latencies(Stage.Decode)
+      assert(decode.count == 3)
+      assert(decode.sum == 1005)
+      assert(decode.buckets(0) == 1)
+      assert(decode.buckets(3) == 1)
+      assert(decode.percentile(0.5) == 7)
+      assert(decode.percentile(1.0) == 1023)
+      assert(snapshot.futureTokens == 1)
+      assert(snapshot.tokenAges.count == 0)
+    }
+
+  }
+
+}
@@ -0,0 +1,78 @@
+package com.github.imcamilo.validators
+
+import com.github.imcamilo.fernet.{FailureReason, KeyRingSpec, Token, TokenView}
+import org.scalatest.wordspec.AnyWordSpec
+
+import java.time.{Clock, Duration, Instant, ZoneOffset}
+
+class CachedValidatorSpec extends AnyWordSpec {
+
+  "a cached validator" should {
+
+    "verify a token once and serve repeats from the cache" in {
+      val key = KeyRingSpec.newKey()
+      val validator = new CachedValidator(new StringValidator {})
+      val serialised = Token.serialise(Token.generate(key, "hello"))
+      assert(validator.validate(key, serialised) == Right("hello"))
+      assert(validator.cache.missCount == 1)
+      assert(validator.validate(key, serialised) == Right("hello"))
+      val token = Token.fromString(serialised).get
+      assert(token.validateAndDecrypt(key, validator).contains("hello"))
+      assert(validator.cache.hitCount == 2)
+      assert(validator.cache.size == 1)
+    }
+
+    "miss for another key or a token sharing only the HMAC" in {
+      val key = KeyRingSpec.newKey()
+      val validator = new CachedValidator(new StringValidator {})
+      val serialised = Token.serialise(Token.generate(key, "hello"))
+      val view = TokenView.fromString(serialised).get
+      assert(validator.validate(key, view) == Right("hello"))
+      assert(
+        validator.validate(KeyRingSpec.newKey(), view) ==
+          Left(FailureReason.SignatureMismatch)
+      )
+      val forged = view.bytes.clone()
+      forged(view.cipherTextOffset) = (forged(view.cipherTextOffset) ^ 1).toByte
+      val forgedView = TokenView.fromBytes(forged).get
+      assert(
+        validator.validate(key, forgedView) ==
+          Left(FailureReason.SignatureMismatch)
+      )
+      assert(validator.cache.hitCount == 0)
+    }
+
+    "expire entries with their tokens" in {
+      val key = KeyRingSpec.newKey()
+      val serialised = Token.serialise(Token.generate(key, "hello"))
+      var now = Instant.now
+      val cache = new VerifiedTokenCache[String]()
+      def validator = new CachedValidator(
+        new StringValidator {
+          override def getClock: Clock = Clock.fixed(now, ZoneOffset.UTC)
+          override def getTimeToLive = Duration.ofSeconds(30)
+        },
+        cache
+      )
+      assert(validator.validate(key, serialised) == Right("hello"))
+      now = now.plusSeconds(60)
+      assert(validator.validate(key, serialised) == Left(FailureReason.Expired))
+      assert(cache.hitCount == 0)
+    }
+
+    "hold at most its maximum size" in {
+      val key = KeyRingSpec.newKey()
+      val validator = new CachedValidator(
+        new StringValidator {},
+        new VerifiedTokenCache[String](maximumSize = 4, shards = 1)
+      )
+      (1 to 10).foreach { i =>
+        val serialised = Token.serialise(Token.generate(key, "p" + i))
+        assert(validator.validate(key, serialised) == Right("p" + i))
+      }
+      assert(validator.cache.size == 4)
+    }
+
+  }
+
+}
@@ -0,0 +1,114 @@
+package com.github.imcamilo.validators
+
+import com.github.imcamilo.exceptions.{OutputValidationException, WHTokenException}
+import com.github.imcamilo.fernet.{FailureReason, KeyRingSpec, Token, TokenView}
+import org.scalatest.wordspec.AnyWordSpec
+
+import java.time.{Clock, Duration, Instant, Period, ZoneOffset}
+import java.util.function.Predicate
+
+class ValidatorSpec extends AnyWordSpec {
+
+  "a validator" should {
+
+    "read the coarse clock by default" in {
+      val validator = new StringValidator {}
+      assert(validator.getClock eq CoarseClock.utc)
+      val system = Instant.now.getEpochSecond
+      assert(math.abs(validator.currentEpochSecond - system) <= 1)
+    }
+
+    "compute its validity window in whole seconds" in {
+      val validator = new StringValidator {
+        override def getClock: Clock =
+          Clock.fixed(Instant.ofEpochSecond(1000), ZoneOffset.UTC)
+        override def getTimeToLive = Duration.ofSeconds(300)
+        override def getMaxClockSkew = Duration.ofSeconds(30)
+      }
+      val now = validator.currentEpochSecond
+      assert(now == 1000)
+      assert(validator.earliestValidEpochSecond(now) == 700)
+      assert(validator.latestValidEpochSecond(now) == 1030)
+    }
+
+    "accept a Period as its time to live" in {
+      val validator = new StringValidator {
+        override def getClock: Clock =
+          Clock.fixed(Instant.ofEpochSecond(1000000), ZoneOffset.UTC)
+        override def getTimeToLive = Period.ofDays(1)
+      }
+      val now = validator.currentEpochSecond
+      assert(validator.earliestValidEpochSecond(now) == 1000000 - 86400)
+      assert(Validator.toSeconds(Period.ofMonths(1)) == 31 * 86400)
+      val key = KeyRingSpec.newKey()
+      val daily = new StringValidator {
+        override def getTimeToLive = Period.ofDays(1)
+      }
+      assert(
+        daily.validate(key, Token.generate(key, "daily")) == Right("daily")
+      )
+    }
+
+    "saturate unbounded windows instead of overflowing" in {
+      val validator = new StringValidator {
+        override def getTimeToLive = Duration.ofSeconds(Long.MaxValue)
+        override def getMaxClockSkew = Duration.ofSeconds(Long.MaxValue)
+      }
+      val now = validator.currentEpochSecond
+      assert(validator.earliestValidEpochSecond(now) < 0)
+      assert(validator.latestValidEpochSecond(now) == Long.MaxValue)
+      assert(StandardValidator.validator.earliestValidEpochSecond(now) < 0)
+    }
+
+    "report rejected tokens as failure reasons" in {
+      val key = KeyRingSpec.newKey()
+      val token = Token.generate(key, "hello")
+      val validator = new StringValidator {}
+      assert(validator.validate(key, token) == Right("hello"))
+      assert(
+        validator.validate(KeyRingSpec.newKey(), token) == Left(
+          FailureReason.SignatureMismatch
+        )
+      )
+      val expired = new StringValidator {
+        override def getClock: Clock =
+          Clock.offset(Clock.systemUTC, Duration.ofHours(1))
+      }
+      assert(expired.validate(key, token) == Left(FailureReason.Expired))
+      val view = TokenView.fromString(Token.serialise(token)).get
+      assert(expired.validate(key, view) == Left(FailureReason.Expired))
+    }
+
+    "reject and zero payloads refused by the object validator" in {
+      val key = KeyRingSpec.newKey()
+      val token = Token.generate(key, "hello")
+      val validator = new StringValidator {
+        override def getObjectValidator: Predicate[String] = _ => false
+      }
+      assert(validator.validate(key, token) == Left(FailureReason.InvalidPayload))
+      val plainText = "hello".getBytes
+      assert(validator.deserialise(plainText) == Left(FailureReason.InvalidPayload))
+      assert(plainText.forall(_ == 0))
+    }
+
+    "build exceptions only for the Try based API" in {
+      val key = KeyRingSpec.newKey()
+      val token = Token.generate(key, "hello")
+      val refusing = new StringValidator {
+        override def getObjectValidator: Predicate[String] = _ => false
+      }
+      assert(
+        refusing.validateAndDecrypt(key, token).failed.get
+          .isInstanceOf[OutputValidationException]
+      )
+      val failure = new StringValidator {}
+        .validateAndDecrypt(KeyRingSpec.newKey(), token)
+        .failed
+        .get
+      assert(failure.isInstanceOf[WHTokenException])
+      assert(failure.getMessage == FailureReason.SignatureMismatch.message)
+    }
+
+  }
+
+}